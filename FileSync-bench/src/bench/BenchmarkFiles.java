@@ -0,0 +1,119 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Generates benchmark input: text files with variable references and the matching
+ * variables map. Same parameters always generate the same data.
+ */
+public final class BenchmarkFiles {
+
+	private static final String CHARS = "abcdefghijklmnopqrstuvwxyz0123456789 .,;()=+-";
+
+	private BenchmarkFiles() {
+		// static helpers only
+	}
+
+	/**
+	 * @param count number of variables
+	 * @return variables map with keys "var0".."var&lt;count-1&gt;"
+	 */
+	public static Properties createVariables(int count) {
+		Properties props = new Properties();
+		for (int i = 0; i < count; i++) {
+			props.setProperty("var" + i, "value_of_variable_" + i);
+		}
+		return props;
+	}
+
+	/**
+	 * Writes text file of given size.
+	 * @param file file to write
+	 * @param size file size in characters (approximately)
+	 * @param lineLength length of one line in characters, without line separator
+	 * @param variables number of different variables referenced, 0 for none
+	 * @param hitDensity percentage (0..100) of lines containing one variable reference
+	 * @param encoding file encoding
+	 */
+	public static void createTextFile(File file, long size, int lineLength, int variables,
+			int hitDensity, String encoding) throws IOException {
+		Random random = new Random(size * 31 + lineLength * 17 + variables * 7 + hitDensity);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				encoding));
+		try {
+			StringBuilder line = new StringBuilder(lineLength + 32);
+			long written = 0;
+			while (written < size) {
+				line.setLength(0);
+				boolean hit = variables > 0 && random.nextInt(100) < hitDensity;
+				int varPosition = hit ? random.nextInt(lineLength + 1) : -1;
+				for (int i = 0; i < lineLength; i++) {
+					if (i == varPosition) {
+						line.append("${var").append(random.nextInt(variables)).append('}');
+					}
+					line.append(CHARS.charAt(random.nextInt(CHARS.length())));
+				}
+				if (varPosition == lineLength) {
+					line.append("${var").append(random.nextInt(variables)).append('}');
+				}
+				line.append('\n');
+				writer.write(line.toString());
+				written += line.length();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes binary file of given size with random content
+	 */
+	public static void createBinaryFile(File file, long size) throws IOException {
+		Random random = new Random(size);
+		byte[] bytes = new byte[64 * 1024];
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			long written = 0;
+			while (written < size) {
+				random.nextBytes(bytes);
+				int count = (int) Math.min(bytes.length, size - written);
+				out.write(bytes, 0, count);
+				written += count;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return new empty temporary directory, deleted on VM exit together with its files
+	 */
+	public static File createTempDir() throws IOException {
+		File dir = File.createTempFile("fsbench", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Could not create temporary directory " + dir);
+		}
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	/**
+	 * Deletes given directory with all files (not recursive)
+	 */
+	public static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.loskutov.fs.command.FS;
+
+/**
+ * Plain file copy without variables substitution, see {@link FS#copy(File, File, boolean, boolean)}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public long fileSize;
+
+	@Param({ "false", "true" })
+	public boolean atomicWrite;
+
+	private File dir;
+
+	private File source;
+
+	private File destination;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		FS.enableLogging = false;
+		dir = BenchmarkFiles.createTempDir();
+		source = new File(dir, "source.bin");
+		destination = new File(dir, "destination.bin");
+		BenchmarkFiles.createBinaryFile(source, fileSize);
+		FS.create(destination, true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.deleteDir(dir);
+	}
+
+	@Benchmark
+	public boolean copy() {
+		return FS.copy(source, destination, true, atomicWrite);
+	}
+}
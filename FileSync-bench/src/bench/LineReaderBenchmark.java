@@ -0,0 +1,92 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.loskutov.fs.command.LineReader;
+
+/**
+ * Line splitting with {@link LineReader}, String per line vs. reused line buffer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineReaderBenchmark {
+
+	@Param({ "1048576" })
+	public long fileSize;
+
+	@Param({ "40", "200", "5000" })
+	public int lineLength;
+
+	@Param({ "UTF-8", "ISO-8859-1" })
+	public String encoding;
+
+	private File dir;
+
+	private File source;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = BenchmarkFiles.createTempDir();
+		source = new File(dir, "source.txt");
+		BenchmarkFiles.createTextFile(source, fileSize, lineLength, 0, 0, encoding);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.deleteDir(dir);
+	}
+
+	private LineReader open() throws IOException {
+		return new LineReader(new BufferedInputStream(new FileInputStream(source)), encoding);
+	}
+
+	@Benchmark
+	public void readLineToString(Blackhole bh) throws IOException {
+		LineReader reader = open();
+		try {
+			String line;
+			while ((line = reader.readLineToString()) != null) {
+				bh.consume(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Benchmark
+	public void readLineBuffer(Blackhole bh) throws IOException {
+		LineReader reader = open();
+		try {
+			CharBuffer line;
+			while ((line = reader.readLineBuffer()) != null) {
+				bh.consume(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
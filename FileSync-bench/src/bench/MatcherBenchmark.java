@@ -0,0 +1,194 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.loskutov.fs.builder.CharOperation;
+import de.loskutov.fs.builder.PatternMatcher;
+import de.loskutov.fs.builder.SyncWizard;
+
+/**
+ * Inclusion/exclusion pattern matching over a generated project tree. One operation
+ * checks all folders and files of the tree, so that the numbers of different
+ * matcher implementations are directly comparable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatcherBenchmark {
+
+	private static final String[] FOLDERS = { "src", "main", "java", "org", "example",
+			"core", "util", "internal", "test", "resources", "bin", "target", "classes",
+			"generated", "web", "images" };
+
+	private static final String[] EXTENSIONS = { ".java", ".class", ".properties",
+			".xml", ".txt", ".png", ".html" };
+
+	/** depth of the generated tree */
+	@Param({ "4", "10" })
+	public int depth;
+
+	/** number of generated paths (folders and files) */
+	@Param({ "5000" })
+	public int paths;
+
+	/** "simple": few patterns without "**", "deep": many "**" patterns */
+	@Param({ "simple", "deep" })
+	public String patterns;
+
+	private char[][] inclusions;
+
+	private char[][] exclusions;
+
+	/** paths with two free characters at the end, see PatternMatcher */
+	private char[][] pathBuffers;
+
+	private int[] pathLengths;
+
+	/** same paths, exact size */
+	private char[][] pathArrays;
+
+	private boolean[] folders;
+
+	/** last path segments, for the name pattern matching */
+	private char[][] names;
+
+	private PatternMatcher matcher;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if ("simple".equals(patterns)) {
+			inclusions = new char[][] { "src/".toCharArray(), "web/".toCharArray() };
+			exclusions = new char[][] { "*/bin/".toCharArray(), "src/*.txt".toCharArray() };
+		} else {
+			inclusions = new char[][] { "**/*.java".toCharArray(),
+					"**/*.properties".toCharArray(), "src/**/resources/**".toCharArray(),
+					"**/web/**/*.html".toCharArray() };
+			exclusions = new char[][] { "**/bin/**".toCharArray(),
+					"**/target/**".toCharArray(), "**/internal/**/*Test*.java".toCharArray(),
+					"**/generated/**".toCharArray(), "**/*.class".toCharArray(),
+					"**/test/**/resources/**/*.xml".toCharArray() };
+		}
+		matcher = new PatternMatcher(inclusions, exclusions);
+
+		Random random = new Random(depth * 31 + paths);
+		List<String> list = new ArrayList<String>(paths);
+		List<Boolean> isFolder = new ArrayList<Boolean>(paths);
+		while (list.size() < paths) {
+			int segments = 1 + random.nextInt(depth);
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < segments; i++) {
+				if (i > 0) {
+					sb.append('/');
+				}
+				sb.append(FOLDERS[random.nextInt(FOLDERS.length)]);
+			}
+			// folder itself and some files below
+			list.add(sb.toString());
+			isFolder.add(Boolean.TRUE);
+			int files = random.nextInt(4);
+			for (int i = 0; i < files && list.size() < paths; i++) {
+				list.add(sb + "/File" + random.nextInt(1000)
+						+ (random.nextInt(10) == 0 ? "Test" : "")
+						+ EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+				isFolder.add(Boolean.FALSE);
+			}
+		}
+		pathBuffers = new char[paths][];
+		pathLengths = new int[paths];
+		pathArrays = new char[paths][];
+		folders = new boolean[paths];
+		names = new char[paths][];
+		for (int i = 0; i < paths; i++) {
+			String path = list.get(i);
+			pathArrays[i] = path.toCharArray();
+			pathLengths[i] = path.length();
+			pathBuffers[i] = new char[path.length() + 2];
+			path.getChars(0, path.length(), pathBuffers[i], 0);
+			folders[i] = isFolder.get(i).booleanValue();
+			names[i] = path.substring(path.lastIndexOf('/') + 1).toCharArray();
+		}
+	}
+
+	/**
+	 * Original (JDT) matching code used by the wizard
+	 */
+	@Benchmark
+	public int syncWizardIsExcluded() {
+		int excluded = 0;
+		for (int i = 0; i < pathArrays.length; i++) {
+			if (SyncWizard.isExcluded(pathArrays[i], inclusions, exclusions, folders[i])) {
+				excluded++;
+			}
+		}
+		return excluded;
+	}
+
+	/**
+	 * Precompiled patterns used by the builder
+	 */
+	@Benchmark
+	public int patternMatcherIsExcluded() {
+		int excluded = 0;
+		for (int i = 0; i < pathBuffers.length; i++) {
+			if (matcher.isExcluded(pathBuffers[i], pathLengths[i], folders[i])) {
+				excluded++;
+			}
+		}
+		return excluded;
+	}
+
+	/**
+	 * Every exclusion pattern against every path, without folder handling
+	 */
+	@Benchmark
+	public int charOperationPathMatch() {
+		int matched = 0;
+		for (int i = 0; i < pathArrays.length; i++) {
+			for (int j = 0; j < exclusions.length; j++) {
+				if (CharOperation.pathMatch(exclusions[j], pathArrays[i], true, '/')) {
+					matched++;
+				}
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Simple name patterns against the last path segment
+	 */
+	@Benchmark
+	public int charOperationMatch() {
+		char[] javaPattern = "*Test*.java".toCharArray();
+		char[] classPattern = "*.class".toCharArray();
+		int matched = 0;
+		for (int i = 0; i < names.length; i++) {
+			char[] name = names[i];
+			if (CharOperation.match(javaPattern, 0, javaPattern.length, name, 0,
+					name.length, true)
+					|| CharOperation.match(classPattern, 0, classPattern.length, name,
+							0, name.length, true)) {
+				matched++;
+			}
+		}
+		return matched;
+	}
+}
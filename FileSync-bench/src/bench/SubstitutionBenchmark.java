@@ -0,0 +1,105 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.loskutov.fs.command.CopyDelegate;
+import de.loskutov.fs.command.CopyDelegate1;
+import de.loskutov.fs.command.FS;
+import de.loskutov.fs.command.MappedCopyDelegate;
+import de.loskutov.fs.command.StreamingCopyDelegate;
+
+/**
+ * File copy with variables substitution through the different copy delegates
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubstitutionBenchmark {
+
+	@Param({ "CopyDelegate", "CopyDelegate1", "StreamingCopyDelegate", "MappedCopyDelegate" })
+	public String delegate;
+
+	@Param({ "65536", "4194304" })
+	public long fileSize;
+
+	@Param({ "40", "200" })
+	public int lineLength;
+
+	@Param({ "10", "1000" })
+	public int variables;
+
+	/** percentage of lines with variable reference */
+	@Param({ "0", "10", "100" })
+	public int hitDensity;
+
+	@Param({ "UTF-8", "ISO-8859-1" })
+	public String encoding;
+
+	private File dir;
+
+	private File source;
+
+	private File destination;
+
+	private CopyDelegate copyDelegate;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		FS.enableLogging = false;
+		dir = BenchmarkFiles.createTempDir();
+		source = new File(dir, "source.txt");
+		destination = new File(dir, "destination.txt");
+		BenchmarkFiles.createTextFile(source, fileSize, lineLength, variables, hitDensity,
+				encoding);
+		FS.create(destination, true);
+		copyDelegate = createDelegate(delegate);
+		copyDelegate.setEncoding(encoding);
+		copyDelegate.setUseCurrentDateForDestinationFiles(true);
+		copyDelegate.setPropertiesMap(BenchmarkFiles.createVariables(variables));
+	}
+
+	static CopyDelegate createDelegate(String name) {
+		if ("CopyDelegate".equals(name)) {
+			return new CopyDelegate();
+		}
+		if ("CopyDelegate1".equals(name)) {
+			return new CopyDelegate1();
+		}
+		if ("StreamingCopyDelegate".equals(name)) {
+			return new StreamingCopyDelegate();
+		}
+		if ("MappedCopyDelegate".equals(name)) {
+			return new MappedCopyDelegate();
+		}
+		throw new IllegalArgumentException("Unknown copy delegate: " + name);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFiles.deleteDir(dir);
+	}
+
+	@Benchmark
+	public boolean copy() {
+		return copyDelegate.copy(source, destination);
+	}
+}
@@ -19,7 +19,11 @@ public class AllTests {
 		TestSuite suite = new TestSuite("Tests for FileSync");
 		//$JUnit-BEGIN$
 		suite.addTestSuite(TestBuilder.class);
+		suite.addTestSuite(TestDestinationIndex.class);
+		suite.addTestSuite(TestDestinationRefreshJob.class);
 		suite.addTestSuite(TestFS.class);
+		suite.addTestSuite(TestPatternMatcher.class);
+		suite.addTestSuite(TestWriteBehindJob.class);
 		//$JUnit-END$
 		return suite;
 	}
@@ -1,5 +1,6 @@
 package test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -19,14 +20,18 @@ import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IPathVariableManager;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.jobs.IJobManager;
@@ -38,7 +43,11 @@ import org.osgi.framework.Bundle;
 
 import de.loskutov.fs.FileSyncPlugin;
 import de.loskutov.fs.actions.ForceFileSyncActionDelegate;
+import de.loskutov.fs.builder.BuildMetrics;
+import de.loskutov.fs.builder.DestinationIndex;
+import de.loskutov.fs.builder.DestinationRefreshJob;
 import de.loskutov.fs.builder.FileSyncBuilder;
+import de.loskutov.fs.builder.WriteBehindJob;
 import de.loskutov.fs.command.FileMapping;
 import de.loskutov.fs.preferences.FileSyncConstants;
 import de.loskutov.fs.properties.ProjectHelper;
@@ -77,6 +86,9 @@ public class TestBuilder extends TestCase {
 
 	private String extraVars;
 
+	/** exclusion patterns of all mappings, "," for none */
+	private String exclusions = ",";
+
 	private final String TEMP_DIR = "${java.io.tmpdir}";
 
 
@@ -208,9 +220,9 @@ public class TestBuilder extends TestCase {
 				mapFile.append(idx).append("=/").append(dir).append("|:/");
 				mapFile.append(project.getName()).append("/").append(dir);
 				if (extraVars != null) {
-					mapFile.append("|,|,|" + extraVars + "\n");
+					mapFile.append("|,|" + exclusions + "|" + extraVars + "\n");
 				} else {
-					mapFile.append("|,|,\n");
+					mapFile.append("|,|" + exclusions + "\n");
 				}
 				idx++;
 			}
@@ -219,9 +231,9 @@ public class TestBuilder extends TestCase {
 				mapFile.append(idx).append("=/").append(dir).append("|");
 				mapFile.append(pathVar).append("/").append(dir);
 				if (extraVars != null) {
-					mapFile.append("|,|,|" + extraVars + "\n");
+					mapFile.append("|,|" + exclusions + "|" + extraVars + "\n");
 				} else {
-					mapFile.append("|,|,\n");
+					mapFile.append("|,|" + exclusions + "\n");
 				}
 				idx++;
 			}
@@ -234,9 +246,9 @@ public class TestBuilder extends TestCase {
 				mapFile.append(idx).append("=/").append(dir).append("|");
 				mapFile.append(path).append("/").append(dir);
 				if (extraVars != null) {
-					mapFile.append("|,|,|" + extraVars + "\n");
+					mapFile.append("|,|" + exclusions + "|" + extraVars + "\n");
 				} else {
-					mapFile.append("|,|,\n");
+					mapFile.append("|,|" + exclusions + "\n");
 				}
 				idx++;
 			}
@@ -244,9 +256,9 @@ public class TestBuilder extends TestCase {
 				mapFile.append("map|");
 				mapFile.append(idx).append("=/").append(dir);
 				if (extraVars != null) {
-					mapFile.append("|,|,|,|" + extraVars + "\n");
+					mapFile.append("|,|,|" + exclusions + "|" + extraVars + "\n");
 				} else {
-					mapFile.append("|,|,|,\n");
+					mapFile.append("|,|,|" + exclusions + "\n");
 				}
 				idx++;
 			}
@@ -552,6 +564,244 @@ public class TestBuilder extends TestCase {
 		waitForBuilder();
 	}
 
+	public void testDestinationChange() throws Exception {
+		createBuilder(srcProj);
+
+		change();
+		waitForBuilder();
+		checkAfterChange();
+
+		// same mappings, only the default target folder is changed
+		IProject destProject = ResourcesPlugin.getWorkspace().getRoot().getProject(
+				"TestProjectD");
+		File newRoot = destProject.getLocation().append("test_moved").toFile();
+		assertFalse(newRoot.exists());
+		defDestination = ":/TestProjectD/test_moved";
+		createProjectMapping(srcProj);
+		waitForBuilder();
+
+		// no source file is changed: only the new destination may force the copy
+		srcProj.build(IncrementalProjectBuilder.FULL_BUILD, monitor);
+		waitForBuilder();
+		for (String dir : srcRootDirs) {
+			IResourceVisitor visitor = new IResourceVisitor() {
+				public boolean visit(IResource resource) throws CoreException {
+					if (resource.getType() == IResource.FILE) {
+						assertTrue("not copied to new destination: " + resource,
+								contains(newRoot, resource.getName()));
+					}
+					return true;
+				}
+			};
+			srcProj.getFolder(dir).accept(visitor);
+		}
+
+		delete();
+		waitForBuilder();
+	}
+
+	private static boolean contains(File dir, String name) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return false;
+		}
+		for (File file : files) {
+			if (file.getName().equals(name) || contains(file, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void testDeleteFolderWithExcludedChild() throws Exception {
+		createBuilder(srcProj);
+
+		change();
+		waitForBuilder();
+		checkAfterChange();
+
+		exclusions = "*.bak";
+		createProjectMapping(srcProj);
+		waitForBuilder();
+
+		// excluded file, never written by the mapping, must survive the folder delete
+		String folder = srcRootDirs[0] + "/" + "a";
+		File destFolder = new File(destPaths[0], folder);
+		assertTrue(destFolder.isDirectory());
+		File excluded = new File(destFolder, "keep.bak");
+		assertTrue(excluded.createNewFile());
+		File[] copied = destFolder.listFiles();
+		try {
+			srcProj.getFolder(folder).delete(true, monitor);
+			waitForBuilder();
+			assertTrue("excluded file deleted", excluded.exists());
+			for (File file : copied) {
+				if (!file.equals(excluded)) {
+					assertFalse("not deleted: " + file, file.exists());
+				}
+			}
+		} finally {
+			excluded.delete();
+		}
+		delete();
+		waitForBuilder();
+	}
+
+	public void testRename() throws Exception {
+		createBuilder(srcProj);
+
+		change();
+		waitForBuilder();
+		checkAfterChange();
+
+		IFolder folder = srcProj.getFolder(srcRootDirs[0] + "/a");
+		File destFolder = new File(destPaths[0], folder.getProjectRelativePath()
+				.toString());
+		folder.getFile("file1.txt").move(folder.getFullPath().append("renamed.txt"),
+				true, monitor);
+		waitForBuilder();
+		checkAfterChange();
+		assertFalse(new File(destFolder, "file1.txt").exists());
+
+		IFolder renamed = srcProj.getFolder(srcRootDirs[0] + "/a_renamed");
+		folder.move(renamed.getFullPath(), true, monitor);
+		waitForBuilder();
+		checkAfterChange();
+		assertFalse(destFolder.exists());
+
+		delete();
+		waitForBuilder();
+	}
+
+	public void testMoveAndEdit() throws Exception {
+		createBuilder(srcProj);
+
+		change();
+		waitForBuilder();
+		checkAfterChange();
+
+		// moved and changed file in one delta
+		final IFolder folder = srcProj.getFolder(srcRootDirs[0] + "/a");
+		final IFile moved = folder.getFile("moved.txt");
+		ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
+			public void run(IProgressMonitor m) throws CoreException {
+				folder.getFile("file1.txt").move(moved.getFullPath(), true, m);
+				moved.setContents(new ByteArrayInputStream("moved and changed"
+						.getBytes()), true, false, m);
+			}
+		}, monitor);
+		waitForBuilder();
+		checkAfterChange();
+		File destFolder = new File(destPaths[0], folder.getProjectRelativePath()
+				.toString());
+		assertTrue(TestFS.isSame(moved.getLocation().toFile(), new File(destFolder,
+				"moved.txt"), true, false));
+
+		// renamed folder with a changed child in one delta
+		final IFolder renamed = srcProj.getFolder(srcRootDirs[0] + "/a_renamed");
+		ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
+			public void run(IProgressMonitor m) throws CoreException {
+				folder.move(renamed.getFullPath(), true, m);
+				renamed.getFile("file2.txt").setContents(new ByteArrayInputStream(
+						"changed after rename".getBytes()), true, false, m);
+			}
+		}, monitor);
+		waitForBuilder();
+		checkAfterChange();
+		assertFalse(destFolder.exists());
+		File changed = renamed.getFile("file2.txt").getLocation().toFile();
+		assertTrue(TestFS.isSame(changed, new File(destPaths[0], renamed
+				.getProjectRelativePath().append("file2.txt").toString()), true, false));
+
+		delete();
+		waitForBuilder();
+	}
+
+	public void testCancelledCleanNotContinued() throws Exception {
+		createBuilder(srcProj);
+
+		change();
+		waitForBuilder();
+		checkAfterChange();
+
+		// user presses "cancel" right after the clean build visited the project
+		NullProgressMonitor cancelling = new NullProgressMonitor() {
+			@Override
+			public void worked(int work) {
+				setCanceled(true);
+			}
+		};
+		try {
+			srcProj.build(IncrementalProjectBuilder.CLEAN_BUILD, cancelling);
+		} catch (OperationCanceledException e) {
+			// expected
+		}
+		waitForBuilder();
+		BuildMetrics metrics = BuildMetrics.getLast(srcProj.getName());
+		assertEquals("Clean", metrics.getKind());
+
+		// next clean build must start from scratch, as after a restart
+		DestinationIndex.removeInstance(srcProj);
+		DestinationIndex index = DestinationIndex.getInstance(srcProj);
+		try {
+			assertFalse("cancelled clean build continued", index.startCleanBuild());
+		} finally {
+			index.finishCleanBuild();
+			DestinationIndex.removeInstance(srcProj);
+		}
+
+		delete();
+		waitForBuilder();
+	}
+
+	public void testMetadataChangesSkipped() throws Exception {
+		int changed = IResourceDelta.CHANGED;
+		// metadata only
+		assertFalse(FileSyncBuilder.isSyncNeeded(changed, IResourceDelta.MARKERS));
+		assertFalse(FileSyncBuilder.isSyncNeeded(changed, IResourceDelta.SYNC));
+		assertFalse(FileSyncBuilder.isSyncNeeded(changed, IResourceDelta.MARKERS
+				| IResourceDelta.SYNC));
+		// destination must be written again
+		assertTrue(FileSyncBuilder.isSyncNeeded(changed, IResourceDelta.CONTENT));
+		assertTrue(FileSyncBuilder.isSyncNeeded(changed, IResourceDelta.REPLACED));
+		assertTrue(FileSyncBuilder.isSyncNeeded(changed, IResourceDelta.ENCODING));
+		assertTrue(FileSyncBuilder.isSyncNeeded(changed, IResourceDelta.MARKERS
+				| IResourceDelta.CONTENT));
+		// added and removed resources are always synced
+		assertTrue(FileSyncBuilder.isSyncNeeded(IResourceDelta.ADDED, 0));
+		assertTrue(FileSyncBuilder.isSyncNeeded(IResourceDelta.REMOVED, 0));
+	}
+
+	public void testBuildMetrics() throws Exception {
+		createBuilder(srcProj);
+
+		change();
+		waitForBuilder();
+		checkAfterChange();
+
+		// published after the destination refresh, which is joined too
+		BuildMetrics metrics = BuildMetrics.getLast(srcProj.getName());
+		assertNotNull(metrics);
+		assertTrue(metrics.getCount(BuildMetrics.Counter.VISITED) > 0);
+		assertTrue(metrics.getCount(BuildMetrics.Counter.MATCHED) > 0);
+		assertEquals(0, metrics.getCount(BuildMetrics.Counter.FAILED));
+		long written = metrics.getCount(BuildMetrics.Counter.COPIED)
+				+ metrics.getCount(BuildMetrics.Counter.SUBSTITUTED);
+		long skipped = metrics.getCount(BuildMetrics.Counter.UP_TO_DATE)
+				+ metrics.getCount(BuildMetrics.Counter.IDENTICAL);
+		assertTrue(written + skipped > 0);
+		assertTrue(written == 0 || metrics.getCount(BuildMetrics.Counter.BYTES_WRITTEN) > 0);
+		String json = metrics.toJson();
+		assertTrue(json, json.startsWith("{\"project\":\"" + srcProj.getName() + "\""));
+		assertTrue(json, json.contains("\"copied\":"));
+
+		delete();
+		waitForBuilder();
+		checkAfterDelete();
+		metrics = BuildMetrics.getLast(srcProj.getName());
+		assertTrue(metrics.getCount(BuildMetrics.Counter.DELETED) > 0);
+	}
+
 	public void testWithResolvedPathVariable() throws Exception {
 		createBuilder(srcProj);
 
@@ -613,6 +863,9 @@ public class TestBuilder extends TestCase {
 			jobManager.join(ResourcesPlugin.FAMILY_MANUAL_BUILD, monitor);
 			jobManager.join(ResourcesPlugin.FAMILY_AUTO_BUILD, monitor);
 			jobManager.join(FileSyncBuilder.class, monitor);
+			// flush of collected changes schedules the refresh
+			jobManager.join(WriteBehindJob.class, monitor);
+			jobManager.join(DestinationRefreshJob.class, monitor);
 		} catch (InterruptedException e) {
 			// just continue.
 		}
@@ -0,0 +1,164 @@
+package test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+
+import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.builder.DestinationIndex;
+import de.loskutov.fs.command.ContentHash;
+import de.loskutov.fs.command.FileMapping;
+
+/**
+ * Checks that the {@link DestinationIndex} is restored from its journal after the
+ * index was dropped without save, as it happens if Eclipse crashes during the build
+ */
+public class TestDestinationIndex extends TestCase {
+
+	private IProject project;
+
+	private NullProgressMonitor monitor;
+
+	private FileMapping[] mappings;
+
+	private File journal;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		monitor = new NullProgressMonitor();
+		project = ResourcesPlugin.getWorkspace().getRoot().getProject("TestDestinationIndex");
+		if (project.exists()) {
+			project.delete(true, true, monitor);
+		}
+		project.create(monitor);
+		project.open(monitor);
+		mappings = new FileMapping[] { new FileMapping(new Path("src"), new Path(System
+				.getProperty("java.io.tmpdir")).append("fsindex"), null, null, null,
+				project.getLocation()) };
+		journal = project.getWorkingLocation(FileSyncPlugin.PLUGIN_ID).append(
+				"destination.journal").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		DestinationIndex.removeInstance(project);
+		project.delete(true, true, monitor);
+		super.tearDown();
+	}
+
+	/**
+	 * @return the index loaded again from the disk, as after a restart
+	 */
+	private DestinationIndex reload() {
+		DestinationIndex.removeInstance(project);
+		DestinationIndex index = DestinationIndex.getInstance(project);
+		index.init(mappings, false, null);
+		return index;
+	}
+
+	private void update(DestinationIndex index, String path) {
+		index.update(mappings[0], path, 42, 4242, ContentHash.UNKNOWN, 4343);
+	}
+
+	private boolean isUpToDate(DestinationIndex index, String path) {
+		return index.isUpToDate(mappings[0], path, 42, 4242);
+	}
+
+	public void testReplayAfterTruncatedRecord() throws Exception {
+		DestinationIndex index = reload();
+		update(index, "src/a.txt");
+		update(index, "src/b.txt");
+		// closes the journal without saving the index
+		DestinationIndex.removeInstance(project);
+		assertTrue(journal.isFile());
+
+		// last record was not completely written
+		RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		raf.setLength(raf.length() - 1);
+		raf.close();
+
+		index = reload();
+		assertTrue(isUpToDate(index, "src/a.txt"));
+		assertFalse(isUpToDate(index, "src/b.txt"));
+	}
+
+	public void testCompactionDeletesJournal() throws Exception {
+		DestinationIndex index = reload();
+		update(index, "src/a.txt");
+		assertTrue(isUpToDate(index, "src/a.txt"));
+		index.save();
+		assertFalse(journal.exists());
+
+		index = reload();
+		assertTrue(isUpToDate(index, "src/a.txt"));
+
+		// replayed journal is compacted too
+		index.remove(mappings[0], new Path("src/a.txt"), false);
+		DestinationIndex.removeInstance(project);
+		assertTrue(journal.isFile());
+		index = reload();
+		assertFalse(journal.exists());
+		assertFalse(isUpToDate(index, "src/a.txt"));
+	}
+
+	public void testOtherGenerationIgnored() throws Exception {
+		DestinationIndex index = reload();
+		update(index, "src/a.txt");
+		DestinationIndex.removeInstance(project);
+		File old = new File(journal.getPath() + ".old");
+		Files.copy(journal.toPath(), old.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		// replay and compaction start the next generation
+		index = reload();
+		assertTrue(isUpToDate(index, "src/a.txt"));
+		index.remove(mappings[0], new Path("src/a.txt"), false);
+		index.save();
+
+		// journal of the previous generation must not be applied again
+		DestinationIndex.removeInstance(project);
+		Files.move(old.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		index = reload();
+		assertFalse(isUpToDate(index, "src/a.txt"));
+	}
+
+	public void testInterruptedCleanContinued() throws Exception {
+		DestinationIndex index = reload();
+		update(index, "src/a.txt");
+		index.save();
+
+		assertFalse(index.startCleanBuild());
+		assertFalse(isUpToDate(index, "src/a.txt"));
+		index.setCleaned("src/a.txt");
+		update(index, "src/a.txt");
+		index.setCleaned("src/b.txt");
+		DestinationIndex.removeInstance(project);
+
+		// next clean build continues the interrupted one
+		index = reload();
+		assertTrue(index.isCleaned("src/a.txt"));
+		assertTrue(index.isCleaned("src/b.txt"));
+		assertTrue(isUpToDate(index, "src/a.txt"));
+		assertTrue(index.startCleanBuild());
+		assertTrue(isUpToDate(index, "src/a.txt"));
+		index.finishCleanBuild();
+		assertFalse(index.isCleaned("src/a.txt"));
+		DestinationIndex.removeInstance(project);
+
+		// finished clean build is not continued
+		index = reload();
+		assertFalse(index.isCleaned("src/a.txt"));
+		assertTrue(isUpToDate(index, "src/a.txt"));
+		assertFalse(index.startCleanBuild());
+		assertFalse(isUpToDate(index, "src/a.txt"));
+		index.finishCleanBuild();
+	}
+}
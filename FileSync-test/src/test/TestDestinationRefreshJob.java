@@ -0,0 +1,79 @@
+package test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import de.loskutov.fs.builder.DestinationRefreshJob;
+
+/**
+ * Checks how the changed destinations of following builds are merged and reduced to
+ * the minimal set of resources to refresh
+ */
+public class TestDestinationRefreshJob extends TestCase {
+
+	private final File root = new File("dest");
+
+	public void testMergeKeepsFolders() {
+		Map<File, Boolean> pending = new HashMap<File, Boolean>();
+		File a = new File(root, "a");
+		File b = new File(root, "b.txt");
+
+		Map<File, Boolean> build1 = new HashMap<File, Boolean>();
+		build1.put(a, Boolean.TRUE);
+		build1.put(b, Boolean.FALSE);
+		DestinationRefreshJob.merge(pending, build1);
+
+		// the same paths changed again as files by the next build
+		Map<File, Boolean> build2 = new HashMap<File, Boolean>();
+		build2.put(a, Boolean.FALSE);
+		build2.put(b, Boolean.FALSE);
+		DestinationRefreshJob.merge(pending, build2);
+		assertEquals(2, pending.size());
+		assertEquals(Boolean.TRUE, pending.get(a));
+		assertEquals(Boolean.FALSE, pending.get(b));
+
+		// file replaced by a folder must be refreshed with children
+		Map<File, Boolean> build3 = new HashMap<File, Boolean>();
+		build3.put(b, Boolean.TRUE);
+		DestinationRefreshJob.merge(pending, build3);
+		assertEquals(Boolean.TRUE, pending.get(b));
+	}
+
+	public void testChildrenOfChangedFolderDropped() {
+		File folder = new File(root, "a");
+		Map<File, Boolean> changes = new HashMap<File, Boolean>();
+		changes.put(folder, Boolean.TRUE);
+		changes.put(new File(folder, "x.txt"), Boolean.FALSE);
+		changes.put(new File(new File(folder, "b"), "y.txt"), Boolean.FALSE);
+		File other = new File(root, "z.txt");
+		changes.put(other, Boolean.FALSE);
+
+		Map<File, Boolean> result = DestinationRefreshJob.collapse(changes);
+		assertEquals(2, result.size());
+		assertEquals(Boolean.TRUE, result.get(folder));
+		assertEquals(Boolean.FALSE, result.get(other));
+	}
+
+	public void testManyFilesCollapsedToFolder() {
+		File many = new File(root, "many");
+		File few = new File(root, "few");
+		Map<File, Boolean> changes = new HashMap<File, Boolean>();
+		for (int i = 0; i < 33; i++) {
+			changes.put(new File(many, "file" + i), Boolean.FALSE);
+		}
+		for (int i = 0; i < 32; i++) {
+			changes.put(new File(few, "file" + i), Boolean.FALSE);
+		}
+
+		Map<File, Boolean> result = DestinationRefreshJob.collapse(changes);
+		// 33 files: folder is refreshed instead, 32 files: refreshed one by one
+		assertEquals(Boolean.TRUE, result.get(many));
+		assertNull(result.get(new File(many, "file0")));
+		assertNull(result.get(few));
+		assertEquals(Boolean.FALSE, result.get(new File(few, "file0")));
+		assertEquals(33, result.size());
+	}
+}
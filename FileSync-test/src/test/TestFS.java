@@ -7,18 +7,35 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
 import org.junit.Ignore;
 
+import de.loskutov.fs.command.AtomicFileOutputStream;
 import de.loskutov.fs.command.CopyDelegate;
 import de.loskutov.fs.command.CopyDelegate1;
+import de.loskutov.fs.command.CopyStrategy;
 import de.loskutov.fs.command.FS;
+import de.loskutov.fs.command.FileMapping;
+import de.loskutov.fs.command.MappedCopyDelegate;
+import de.loskutov.fs.command.MappedFileReader;
+import de.loskutov.fs.command.MappingTrie;
+import de.loskutov.fs.command.StreamingCopyDelegate;
+import de.loskutov.fs.command.SubstitutionTable;
+import de.loskutov.fs.command.TreeDeleter;
 
 public class TestFS extends TestCase {
 
@@ -123,6 +140,92 @@ public class TestFS extends TestCase {
 		assertTrue(result);
 	}
 
+	public void testSubstitutionTableCache() throws IOException {
+		File defaults = new File(tempDir, "defaults.properties");
+		File variables = new File(tempDir, "variables.properties");
+		assertTrue(FS.create(defaults, true));
+		assertTrue(FS.create(variables, true));
+		writeFile(defaults, "a=1\nb=2\n");
+		writeFile(variables, "b=3\n");
+
+		SubstitutionTable table = SubstitutionTable.getInstance(defaults, variables);
+		assertEquals("1", table.getVariables().getProperty("a"));
+		assertEquals("3", table.getVariables().getProperty("b"));
+		// same content: compiled table is reused
+		assertSame(table, SubstitutionTable.getInstance(defaults, variables));
+		assertNotSame(table, SubstitutionTable.getInstance(null, variables));
+
+		writeFile(variables, "b=4\n");
+		SubstitutionTable changed = SubstitutionTable.getInstance(defaults, variables);
+		assertNotSame(table, changed);
+		assertEquals("4", changed.getVariables().getProperty("b"));
+
+		assertTrue(FS.delete(defaults, false));
+		assertTrue(FS.delete(variables, false));
+	}
+
+	private static void writeFile(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testMove() {
+		File dir = new File(tempDir, "moveSource");
+		File file = new File(dir, "file.txt");
+		assertTrue(FS.create(file, true));
+
+		File movedDir = new File(tempDir, "moved" + File.separator + "dir");
+		assertTrue(FS.move(dir, movedDir));
+		assertFalse(dir.exists());
+		File movedFile = new File(movedDir, "file.txt");
+		assertTrue(movedFile.isFile());
+
+		// existing file is replaced
+		assertTrue(FS.create(tempFile1, true));
+		assertTrue(FS.move(movedFile, tempFile1));
+		assertFalse(movedFile.exists());
+		assertTrue(tempFile1.isFile());
+
+		// not existing source or not empty destination directory can't be renamed
+		assertFalse(FS.move(movedFile, tempFile2));
+		assertTrue(FS.create(movedFile, true));
+		assertTrue(FS.create(new File(dir, "other.txt"), true));
+		assertFalse(FS.move(movedDir, dir));
+		assertTrue(movedFile.isFile());
+
+		assertTrue(FS.delete(new File(tempDir, "moved"), true));
+		assertTrue(FS.delete(dir, true));
+	}
+
+	public void testTreeDeleter() throws IOException {
+		File root = new File(tempDir, "tree");
+		int count = 0;
+		for (int i = 0; i < 5; i++) {
+			File dir = new File(root, "dir" + i + File.separator + "sub");
+			for (int j = 0; j < 100; j++) {
+				assertTrue(FS.create(new File(dir, "file" + j + ".txt"), true));
+				count++;
+			}
+			// "sub" and "dir" + i
+			count += 2;
+		}
+		count++;
+
+		TreeDeleter.Result result = TreeDeleter.delete(root);
+		assertTrue(result.toString(), result.isOk());
+		assertEquals(count, result.getDeletedCount());
+		assertEquals(0, result.getFailedCount());
+		assertFalse(root.exists());
+
+		result = TreeDeleter.delete(root);
+		assertTrue(result.isOk());
+		assertEquals(0, result.getDeletedCount());
+	}
+
 	public void testIsSame() throws Exception {
 		byte[] randomBytes = createRandomBytes(500);
 
@@ -249,6 +352,161 @@ public class TestFS extends TestCase {
 		assertTrue(isSame(file1, file2, true, true));
 	}
 
+	public void testAtomicCopy() throws Exception {
+		byte[] randomBytes = createRandomBytes(500);
+		FS.create(tempFile1, true);
+		FileOutputStream fos1 = new FileOutputStream(tempFile1, false);
+		fos1.write(randomBytes);
+		fos1.close();
+
+		// destination need not to exist
+		FS.delete(tempFile2, false);
+		boolean result = FS.copy(tempFile1, tempFile2, false, true);
+		assertTrue(result);
+		assertTrue(isSame(tempFile1, tempFile2, true, true));
+
+		// not committed stream does not change the destination
+		AtomicFileOutputStream out = AtomicFileOutputStream.open(tempFile2);
+		out.write(createRandomBytes(100));
+		out.close();
+		assertTrue(isSame(tempFile1, tempFile2, true, true));
+		assertEquals(2, tempDir.list().length);
+
+		// left over temporary files are removed
+		out = AtomicFileOutputStream.open(tempFile2);
+		out.write(createRandomBytes(100));
+		assertEquals(3, tempDir.list().length);
+		File[] files = tempDir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].setLastModified(0);
+		}
+		AtomicFileOutputStream.deleteStaleFiles(tempDir);
+		out.close();
+		assertEquals(2, tempDir.list().length);
+		assertTrue(tempFile2.isFile());
+	}
+
+	public void testForcedCopy() throws Exception {
+		FS.create(tempFile1, true);
+		FileOutputStream fos1 = new FileOutputStream(tempFile1, false);
+		fos1.write(createRandomBytes(500));
+		fos1.close();
+		FS.create(tempFile2, true);
+		FileOutputStream fos2 = new FileOutputStream(tempFile2, false);
+		fos2.write(createRandomBytes(500));
+		fos2.close();
+		tempFile2.setLastModified(tempFile1.lastModified());
+
+		// same size and date: not copied, unless the content is known to differ
+		assertTrue(FS.copy(tempFile1, tempFile2, false, false));
+		assertFalse(isSame(tempFile1, tempFile2, true, false));
+		assertTrue(FS.copy(tempFile1, tempFile2, false, false, true));
+		assertTrue(isSame(tempFile1, tempFile2, true, true));
+	}
+
+	public void testAtomicCopyKeepsPermissionsAndLinks() throws Exception {
+		if (Files.getFileAttributeView(tempDir.getParentFile().toPath(),
+				PosixFileAttributeView.class) == null) {
+			// no POSIX permissions and links on this file system
+			return;
+		}
+		byte[] randomBytes = createRandomBytes(500);
+		FS.create(tempFile1, true);
+		FileOutputStream fos1 = new FileOutputStream(tempFile1, false);
+		fos1.write(randomBytes);
+		fos1.close();
+
+		// permissions of the replaced file are kept
+		FS.create(tempFile2, true);
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(tempFile2
+				.toPath());
+		permissions.add(PosixFilePermission.OWNER_EXECUTE);
+		Files.setPosixFilePermissions(tempFile2.toPath(), permissions);
+		assertTrue(FS.copy(tempFile1, tempFile2, false, true));
+		assertTrue(isSame(tempFile1, tempFile2, true, true));
+		assertEquals(permissions, Files.getPosixFilePermissions(tempFile2.toPath()));
+
+		// link is kept and its target is written
+		FS.delete(tempFile3, false);
+		Files.createSymbolicLink(tempFile3.toPath(), tempFile2.toPath());
+		try {
+			FileOutputStream fos2 = new FileOutputStream(tempFile1, false);
+			fos2.write(createRandomBytes(300));
+			fos2.close();
+			assertTrue(FS.copy(tempFile1, tempFile3, false, true));
+			assertTrue(Files.isSymbolicLink(tempFile3.toPath()));
+			assertTrue(isSame(tempFile1, tempFile2, true, true));
+			assertEquals(3, tempDir.list().length);
+		} finally {
+			// tearDown would not see the link after its target is deleted
+			Files.deleteIfExists(tempFile3.toPath());
+		}
+	}
+
+	public void testCopyStrategies() throws Exception {
+		int[] sizes = new int[] { 0, 1, 500, 100 * 1024, 5 * 1024 * 1024 };
+		CopyStrategy[] strategies = CopyStrategy.getAll();
+		// other tests copy files with the same strategies
+		for (CopyStrategy strategy : strategies) {
+			strategy.resetStatistics();
+		}
+		for (int size : sizes) {
+			byte[] randomBytes = createRandomBytes(size);
+			for (CopyStrategy strategy : strategies) {
+				FS.create(tempFile1, true);
+				FileOutputStream fos1 = new FileOutputStream(tempFile1, false);
+				fos1.write(randomBytes);
+				fos1.close();
+				FS.delete(tempFile2, false);
+				FS.create(tempFile2, true);
+
+				FileInputStream in = new FileInputStream(tempFile1);
+				FileOutputStream out = new FileOutputStream(tempFile2);
+				try {
+					strategy.copy(in.getChannel(), out.getChannel(), in.getChannel().size());
+				} finally {
+					in.close();
+					out.close();
+				}
+				assertTrue(strategy.getName() + ", size: " + size,
+						isSame(tempFile1, tempFile2, true, false));
+			}
+		}
+		for (CopyStrategy strategy : strategies) {
+			assertEquals(sizes.length, strategy.getFilesCopied());
+		}
+	}
+
+	public void testMappingTrie() {
+		String[] sources = new String[] { "src", "src/a", "doc", "src/a/b/c", "src", "" };
+		FileMapping[] mappings = new FileMapping[sources.length];
+		for (int i = 0; i < sources.length; i++) {
+			mappings[i] = new FileMapping(new Path(sources[i]), new Path("/tmp/" + i),
+					null, null, null, null);
+		}
+		FileMapping[] withoutRoot = new FileMapping[mappings.length - 1];
+		System.arraycopy(mappings, 0, withoutRoot, 0, withoutRoot.length);
+		String[] paths = new String[] { "", "src", "src/a", "src/a/b", "src/a/b/c/d",
+				"srcx", "doc/x.txt", "bin", "src/b" };
+		for (FileMapping[] all : new FileMapping[][] { mappings, withoutRoot }) {
+			MappingTrie trie = new MappingTrie(all);
+			for (String p : paths) {
+				IPath path = new Path(p);
+				List<FileMapping> expected = new ArrayList<FileMapping>();
+				boolean children = false;
+				for (FileMapping fm : all) {
+					if (fm.getSourcePath().isPrefixOf(path)) {
+						expected.add(fm);
+					}
+					children |= path.isPrefixOf(fm.getSourcePath());
+				}
+				assertEquals(p, expected, Arrays.asList(trie.getMappings(path)));
+				assertEquals(p, !expected.isEmpty(), trie.hasMapping(path));
+				assertEquals(p, children, trie.hasMappedChildren(path));
+			}
+		}
+	}
+
 	public void testCopyDelegate1() throws Exception {
 		CopyDelegate cd = new CopyDelegate();
 		cd.setUseCurrentDateForDestinationFiles(false);
@@ -261,6 +519,50 @@ public class TestFS extends TestCase {
 		copyDelegateTest(cd);
 	}
 
+	public void testStreamingCopyDelegate()  throws Exception {
+		CopyDelegate cd = new StreamingCopyDelegate();
+		cd.setUseCurrentDateForDestinationFiles(false);
+		copyDelegateTest(cd);
+	}
+
+	public void testMappedFileReader() throws Exception {
+		// multi-byte characters read through small buffers and small windows
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			sb.append(i % 7 == 0 ? "${v\u00e4r}" : "\u20ac").append(i % 13 == 0 ? "\n" : "x");
+		}
+		String text = sb.toString();
+		FS.create(tempFile1, true);
+		assertTrue(tempFile1.isFile());
+		String[] encodings = new String[] { "UTF-8", "UTF-16", "ISO-8859-15" };
+		int[] windows = new int[] { 16, 17, 64, 1024 * 1024 };
+		for (String encoding : encodings) {
+			FileOutputStream fos = new FileOutputStream(tempFile1, false);
+			fos.write(text.getBytes(encoding));
+			fos.close();
+			for (int window : windows) {
+				MappedFileReader reader = new MappedFileReader(tempFile1, encoding, window);
+				StringBuilder result = new StringBuilder();
+				char[] buffer = new char[17];
+				int read;
+				while ((read = reader.read(buffer)) >= 0) {
+					result.append(buffer, 0, read);
+				}
+				reader.close();
+				assertEquals(encoding + ", window " + window, text, result.toString());
+			}
+		}
+		// the file must not be locked after close
+		assertTrue(tempFile1.delete());
+	}
+
+	public void testMappedCopyDelegate()  throws Exception {
+		// window reader for all files, small window to move it over tokens
+		CopyDelegate cd = new MappedCopyDelegate(0, 16);
+		cd.setUseCurrentDateForDestinationFiles(false);
+		copyDelegateTest(cd);
+	}
+
 	@Ignore
 	public void testCopyDelegatePerformance() throws Exception {
 		CopyDelegate cd1 = new CopyDelegate1();
@@ -358,9 +660,9 @@ public class TestFS extends TestCase {
 		stop = System.currentTimeMillis();
 		long time2 = stop - start;
 
+		// only reported: which delegate is faster depends on the machine and JIT
 		System.out.println("Copy1: " + time1);
 		System.out.println("Copy2: " + time2);
-		assertTrue(time2 < time1);
 	}
 
 	private void copyDelegateTest(CopyDelegate cd) throws Exception {
@@ -0,0 +1,195 @@
+package test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.runtime.Path;
+
+import de.loskutov.fs.builder.PatternMatcher;
+import de.loskutov.fs.builder.SyncWizard;
+
+/**
+ * Compares results of {@link PatternMatcher} with the original
+ * {@link SyncWizard#isExcluded(char[], char[][], char[][], boolean)} implementation
+ */
+public class TestPatternMatcher extends TestCase {
+
+	static final String[] PATTERN_SEGMENTS = new String[] { "a", "b", "ab", "a.x", "b.y",
+			"**", "*", "?", "*.x", "a*", "?b", "*b*", "" };
+
+	static final String[] PATH_SEGMENTS = new String[] { "a", "b", "ab", "a.x", "b.y",
+			"x", "abb" };
+
+	private Random random;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		random = new Random(42);
+	}
+
+	public void testKnownPatterns() {
+		String[] paths = new String[] { "src/a/b/c.x", "src", "src/a", "doc/CVS",
+				"src/deep/er/path/file.java", "a.java" };
+		String[][] inclusions = new String[][] { { "**/*" }, { "src/", "**/*.java" },
+				{ "src/a/b/*.x" }, { "*/a" }, null };
+		String[][] exclusions = new String[][] { { "**/c.x" }, { "src/deep/" }, null,
+				{ "**/*.java" }, { "**/CVS/**" } };
+		for (int i = 0; i < inclusions.length; i++) {
+			char[][] incl = toChars(inclusions[i]);
+			char[][] excl = toChars(exclusions[i]);
+			PatternMatcher matcher = new PatternMatcher(incl, excl);
+			for (String path : paths) {
+				assertSameResult(path, incl, excl, matcher, true);
+				assertSameResult(path, incl, excl, matcher, false);
+			}
+		}
+	}
+
+	public void testRandomPatterns() {
+		for (int i = 0; i < 20000; i++) {
+			char[][] incl = null;
+			if (random.nextInt(4) != 0) {
+				incl = new char[1 + random.nextInt(2)][];
+				for (int j = 0; j < incl.length; j++) {
+					incl[j] = random.nextInt(4) == 0 ? "**/*".toCharArray() : createPattern();
+				}
+			}
+			char[][] excl = null;
+			if (random.nextInt(3) != 0) {
+				excl = new char[1 + random.nextInt(2)][];
+				for (int j = 0; j < excl.length; j++) {
+					excl[j] = createPattern();
+				}
+			}
+			PatternMatcher matcher = new PatternMatcher(incl, excl);
+			for (int k = 0; k < 10; k++) {
+				assertSameResult(createPath(), incl, excl, matcher, random.nextBoolean());
+			}
+		}
+	}
+
+	public void testSubtreeExcluded() {
+		PatternMatcher matcher = new PatternMatcher(null, toChars(new String[] {
+				"**/node_modules/**", "target/" }));
+		assertTrue(matcher.isSubtreeExcluded(new Path("node_modules")));
+		assertTrue(matcher.isSubtreeExcluded(new Path("web/node_modules")));
+		assertTrue(matcher.isSubtreeExcluded(new Path("target/classes")));
+		assertFalse(matcher.isSubtreeExcluded(new Path("src")));
+		matcher = new PatternMatcher(toChars(new String[] { "src/**/*.java" }), null);
+		assertTrue(matcher.isSubtreeExcluded(new Path("doc")));
+		assertFalse(matcher.isSubtreeExcluded(new Path("src")));
+		assertFalse(matcher.isSubtreeExcluded(new Path("src/a")));
+	}
+
+	public void testRandomSubtreeExcluded() {
+		for (int i = 0; i < 5000; i++) {
+			char[][] incl = null;
+			if (random.nextBoolean()) {
+				incl = new char[][] { createPattern() };
+			}
+			char[][] excl = new char[][] { createPattern() };
+			PatternMatcher matcher = new PatternMatcher(incl, excl);
+			String folder = createPath();
+			if (!matcher.isSubtreeExcluded(folder.toCharArray(), folder.length())) {
+				continue;
+			}
+			// nothing below may be included
+			for (int k = 0; k < 20; k++) {
+				String child = folder + (folder.endsWith("/") ? "" : "/") + createPath();
+				if (child.indexOf("//") >= 0) {
+					continue;
+				}
+				boolean isFolder = random.nextBoolean();
+				try {
+					assertTrue(child + ", inclusions: " + toString(incl) + ", exclusions: "
+							+ toString(excl), SyncWizard.isExcluded(child.toCharArray(),
+							incl, excl, isFolder));
+				} catch (RuntimeException e) {
+					// empty folder patterns are not supported by the original code too
+				}
+			}
+		}
+	}
+
+	private void assertSameResult(String path, char[][] incl, char[][] excl,
+			PatternMatcher matcher, boolean isFolder) {
+		boolean expected;
+		try {
+			expected = SyncWizard.isExcluded(path.toCharArray(), incl, excl, isFolder);
+		} catch (RuntimeException e) {
+			// empty folder patterns are not supported by the original code too
+			return;
+		}
+		char[] buffer = new char[path.length() + 2];
+		path.getChars(0, path.length(), buffer, 0);
+		String message = path + ", folder: " + isFolder + ", inclusions: "
+				+ toString(incl) + ", exclusions: " + toString(excl);
+		assertEquals(message, expected, matcher.isExcluded(buffer, path.length(), isFolder));
+		if (!path.startsWith("/") && !path.endsWith("/") && path.indexOf("//") < 0) {
+			assertEquals(message, expected, matcher.isExcluded(new Path(path), isFolder));
+		}
+	}
+
+	private char[] createPattern() {
+		StringBuilder sb = new StringBuilder();
+		if (random.nextInt(8) == 0) {
+			sb.append('/');
+		}
+		int count = 1 + random.nextInt(4);
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append('/');
+			}
+			sb.append(PATTERN_SEGMENTS[random.nextInt(PATTERN_SEGMENTS.length)]);
+		}
+		if (random.nextInt(5) == 0) {
+			sb.append('/');
+		}
+		return sb.length() == 0 ? "a".toCharArray() : sb.toString().toCharArray();
+	}
+
+	private String createPath() {
+		StringBuilder sb = new StringBuilder();
+		if (random.nextInt(10) == 0) {
+			sb.append('/');
+		}
+		int count = 1 + random.nextInt(5);
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append('/');
+			}
+			sb.append(PATH_SEGMENTS[random.nextInt(PATH_SEGMENTS.length)]);
+		}
+		if (random.nextInt(15) == 0) {
+			sb.append('/');
+		}
+		return sb.toString();
+	}
+
+	private static char[][] toChars(String[] patterns) {
+		if (patterns == null) {
+			return null;
+		}
+		char[][] chars = new char[patterns.length][];
+		for (int i = 0; i < patterns.length; i++) {
+			chars[i] = patterns[i].toCharArray();
+		}
+		return chars;
+	}
+
+	private static String toString(char[][] patterns) {
+		if (patterns == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < patterns.length; i++) {
+			if (i > 0) {
+				sb.append(';');
+			}
+			sb.append(patterns[i]);
+		}
+		return sb.toString();
+	}
+}
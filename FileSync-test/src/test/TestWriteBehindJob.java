@@ -0,0 +1,137 @@
+package test;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+
+import de.loskutov.fs.builder.WriteBehindJob;
+import de.loskutov.fs.builder.WriteBehindJob.Change;
+import de.loskutov.fs.properties.ProjectProperties;
+
+/**
+ * Checks how {@link WriteBehindJob} merges and orders the queued changes. The
+ * project has no FileSync mapping, so a flush only empties the queue.
+ */
+public class TestWriteBehindJob extends TestCase {
+
+	private IProject project;
+
+	private NullProgressMonitor monitor;
+
+	private WriteBehindJob queue;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		monitor = new NullProgressMonitor();
+		project = ResourcesPlugin.getWorkspace().getRoot().getProject("TestWriteBehind");
+		if (project.exists()) {
+			project.delete(true, true, monitor);
+		}
+		project.create(monitor);
+		project.open(monitor);
+		queue = WriteBehindJob.getInstance(project);
+		queue.flush(monitor);
+		queue.updateMarker();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		queue.flush(monitor);
+		queue.updateMarker();
+		ProjectProperties.removeInstance(project);
+		project.delete(true, true, monitor);
+		super.tearDown();
+	}
+
+	public void testMergeChangesOfSameFile() throws Exception {
+		queue.add(project.getFile("a.txt"), IResourceDelta.ADDED);
+		queue.add(project.getFile("a.txt"), IResourceDelta.CHANGED);
+		queue.add(project.getFile("b.txt"), IResourceDelta.CHANGED);
+		queue.add(project.getFile("a.txt"), IResourceDelta.REMOVED);
+
+		List<Entry<IPath, Change>> changes = queue.getPendingChanges();
+		assertEquals(2, changes.size());
+		// only the last operation of each file is left
+		assertEquals(new Path("a.txt"), changes.get(0).getKey());
+		assertTrue(changes.get(0).getValue().isRemove());
+		assertEquals(new Path("b.txt"), changes.get(1).getKey());
+		assertFalse(changes.get(1).getValue().isRemove());
+	}
+
+	public void testFileReplacedByFolder() throws Exception {
+		queue.add(project.getFile("x"), IResourceDelta.REMOVED);
+		queue.add(project.getFolder("x"), IResourceDelta.ADDED);
+		queue.add(project.getFolder("x"), IResourceDelta.CHANGED);
+
+		List<Entry<IPath, Change>> changes = queue.getPendingChanges();
+		assertEquals(1, changes.size());
+		Change change = changes.get(0).getValue();
+		assertFalse(change.isRemove());
+		assertEquals(IResource.FOLDER, change.getType());
+		// the old file must be deleted before the folder is created
+		assertEquals(IResource.FILE, change.getRemovedType());
+
+		// and that is still known after the folder is changed again
+		queue.add(project.getFolder("x"), IResourceDelta.CHANGED);
+		change = queue.getPendingChanges().get(0).getValue();
+		assertEquals(IResource.FILE, change.getRemovedType());
+	}
+
+	public void testFlushOrder() throws Exception {
+		queue.add(project.getFolder("new"), IResourceDelta.ADDED);
+		queue.add(project.getFolder("old"), IResourceDelta.REMOVED);
+		queue.add(project.getFile("new/a/b.txt"), IResourceDelta.ADDED);
+		queue.add(project.getFile("old/a/b.txt"), IResourceDelta.REMOVED);
+		queue.add(project.getFolder("new/a"), IResourceDelta.ADDED);
+		queue.add(project.getFolder("old/a"), IResourceDelta.REMOVED);
+
+		List<Entry<IPath, Change>> changes = queue.getPendingChanges();
+		String[] expected = new String[] { "old/a/b.txt", "old/a", "old", "new",
+				"new/a", "new/a/b.txt" };
+		assertEquals(expected.length, changes.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(new Path(expected[i]), changes.get(i).getKey());
+		}
+	}
+
+	public void testMarkerCount() throws Exception {
+		assertEquals(0, findMarkers().length);
+
+		queue.add(project.getFile("a.txt"), IResourceDelta.ADDED);
+		queue.add(project.getFile("a.txt"), IResourceDelta.CHANGED);
+		queue.add(project.getFile("b.txt"), IResourceDelta.ADDED);
+		queue.updateMarker();
+		IMarker[] markers = findMarkers();
+		assertEquals(1, markers.length);
+		String message = markers[0].getAttribute(IMarker.MESSAGE, "");
+		assertTrue(message, message.startsWith("2 "));
+
+		queue.add(project.getFile("c.txt"), IResourceDelta.REMOVED);
+		queue.updateMarker();
+		markers = findMarkers();
+		assertEquals(1, markers.length);
+		message = markers[0].getAttribute(IMarker.MESSAGE, "");
+		assertTrue(message, message.startsWith("3 "));
+
+		assertTrue(queue.flush(monitor));
+		queue.updateMarker();
+		assertEquals(0, queue.getPendingChanges().size());
+		assertEquals(0, findMarkers().length);
+	}
+
+	private IMarker[] findMarkers() throws Exception {
+		return project.findMarkers(WriteBehindJob.MARKER_TYPE, false,
+				IResource.DEPTH_ZERO);
+	}
+}
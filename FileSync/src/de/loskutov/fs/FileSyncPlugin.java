@@ -9,6 +9,7 @@
 package de.loskutov.fs;
 
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jface.preference.IPreferenceStore;
@@ -17,7 +18,9 @@ import org.eclipse.jface.resource.ImageRegistry;
 import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
+import org.osgi.framework.BundleContext;
 
+import de.loskutov.fs.builder.FileSyncBuilder;
 import de.loskutov.fs.preferences.FileSyncConstants;
 
 /**
@@ -29,6 +32,26 @@ public class FileSyncPlugin extends AbstractUIPlugin {
 
     public static final String PLUGIN_ID = "de.loskutov.FileSync";
 
+    /** debug option to log every sync failure separately, without rate limit */
+    public static final String DEBUG_LOG = PLUGIN_ID + "/debug/log";
+
+    /**
+     * max. number of warnings and infos logged per second, all others are only counted
+     * (errors are always logged)
+     */
+    private static final int LOG_RATE = Integer.getInteger("fs.lograte", 10).intValue();
+
+    private static final Object LOG_LOCK = new Object();
+
+    /** current second of the log rate limit */
+    private static long logSecond;
+
+    /** entries logged in the current second */
+    private static int loggedInSecond;
+
+    /** entries not logged because of the rate limit, not yet reported */
+    private static int suppressed;
+
     /**
      * The constructor.
      */
@@ -40,6 +63,15 @@ public class FileSyncPlugin extends AbstractUIPlugin {
         plugin = this;
     }
 
+    @Override
+    public void stop(BundleContext context) throws Exception {
+        try {
+            FileSyncBuilder.stopPendingChanges();
+        } finally {
+            super.stop(context);
+        }
+    }
+
     /**
      * Returns the shared instance.
      */
@@ -63,24 +95,90 @@ public class FileSyncPlugin extends AbstractUIPlugin {
     }
 
     /**
+     * Warnings and infos are rate limited (see "fs.lograte" system property), unless
+     * the {@link #DEBUG_LOG} debug option is enabled. The number of suppressed
+     * entries is logged later.
      * @param statusID
      *            one of IStatus. constants like IStatus.ERROR etc
      * @param error
      */
     public static void log(String messageID, Throwable error, int statusID) {
+        if (statusID != IStatus.ERROR && !isLogDetails()) {
+            int dropped;
+            synchronized (LOG_LOCK) {
+                dropped = takeSuppressed();
+                if (loggedInSecond >= LOG_RATE) {
+                    suppressed++;
+                    return;
+                }
+                loggedInSecond++;
+            }
+            reportSuppressed(dropped);
+        }
         if (messageID == null) {
             messageID = error.getMessage();
             if (messageID == null) {
                 messageID = error.toString();
             }
         }
-        Status status = new Status(statusID, PLUGIN_ID, 0, messageID, error);
+        logStatus(new Status(statusID, PLUGIN_ID, 0, messageID, error));
+    }
+
+    private static void logStatus(Status status) {
         getDefault().getLog().log(status);
         if(getDefault().isDebugging()){
             System.out.println(status);
         }
     }
 
+    /**
+     * Starts the next second of the log rate limit, if the current one is over
+     * @return number of suppressed entries to report, if a new second was started
+     */
+    private static int takeSuppressed() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second == logSecond) {
+            return 0;
+        }
+        logSecond = second;
+        loggedInSecond = 0;
+        int dropped = suppressed;
+        suppressed = 0;
+        return dropped;
+    }
+
+    private static void reportSuppressed(int dropped) {
+        if (dropped > 0) {
+            logStatus(new Status(IStatus.WARNING, PLUGIN_ID, 0, dropped
+                    + " log entries were suppressed (more than " + LOG_RATE
+                    + " per second). Enable debug option '" + DEBUG_LOG
+                    + "' to see all of them.", null));
+        }
+    }
+
+    /**
+     * Logs the number of entries suppressed by the rate limit so far, should be
+     * called at the end of a build
+     */
+    public static void flushLog() {
+        int dropped;
+        synchronized (LOG_LOCK) {
+            dropped = suppressed;
+            suppressed = 0;
+        }
+        reportSuppressed(dropped);
+    }
+
+    /**
+     * @return true if every failure should be logged separately, without aggregation
+     * and rate limit
+     */
+    public static boolean isLogDetails() {
+        FileSyncPlugin fsp = getDefault();
+        return fsp != null && fsp.isDebugging()
+                && "true".equalsIgnoreCase(Platform.getDebugOption(DEBUG_LOG));
+    }
+
     public static Shell getShell() {
         return getDefault().getWorkbench().getActiveWorkbenchWindow().getShell();
     }
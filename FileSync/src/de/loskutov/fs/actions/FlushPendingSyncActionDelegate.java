@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.actions;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.jface.action.IAction;
+
+import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.builder.FileSyncBuilder;
+
+/**
+ * Writes the changes collected by the builder in "write behind" or "debounce" mode
+ * without waiting
+ * @author Andrey
+ */
+public class FlushPendingSyncActionDelegate extends ForceFileSyncActionDelegate {
+
+    public FlushPendingSyncActionDelegate() {
+        super();
+    }
+
+    @Override
+    public void run(IAction action) {
+        IProject project = getSelectedProject();
+        if (project == null) {
+            FileSyncPlugin.error("Could not write pending changes - project is null!",
+                    null);
+            return;
+        }
+        FileSyncBuilder.flushPendingChanges(project);
+    }
+}
@@ -62,6 +62,13 @@ public class ForceFileSyncActionDelegate extends ActionDelegate implements IHand
         }
     }
 
+    /**
+     * @return the selected project, may be null
+     */
+    protected IProject getSelectedProject() {
+        return project;
+    }
+
     /**
      * Public method to be able to test it
      */
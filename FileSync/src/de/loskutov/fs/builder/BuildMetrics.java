@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.core.runtime.IStatus;
+
+import de.loskutov.fs.FileSyncPlugin;
+
+/**
+ * Timing and counters of one file sync build of one project. Counters may be
+ * updated concurrently from the copy threads.
+ * <p>
+ * The destination refresh runs asynchronously after the build, so the metrics are
+ * published (see {@link #getLast(String)}, {@link Listener}) only after the refresh
+ * is done. Because the refresh collects changes from following builds, the refresh
+ * time is the time of the refresh this build took part in.
+ * <p>
+ * A summary of each build is logged in debug mode. If the "fs.metricsfile" system
+ * property points to a file, one JSON object per build is appended to it.
+ * @author Andrey
+ */
+public final class BuildMetrics {
+
+    /**
+     * Build phases, times of concurrent operations (copy) are summed up
+     */
+    public enum Phase {
+        /** whole resource tree (or delta) visit, including all other phases below */
+        TRAVERSE,
+        /** inclusion/exclusion pattern matching */
+        MATCH,
+        /** up-to-date checks, content comparison and copy of the files */
+        COPY,
+        /** deletion of destination files */
+        DELETE,
+        /** waiting for the parallel copy threads at the build end */
+        WAIT,
+        /** saving of the destination index */
+        INDEX,
+        /** refresh of changed destination resources in the workspace */
+        REFRESH
+    }
+
+    public enum Counter {
+        /** visited resources or deltas */
+        VISITED,
+        /** resources matching the mappings */
+        MATCHED,
+        /** changed files skipped because only markers, sync info or other metadata changed */
+        FILTERED,
+        /** folders not entered because their whole subtree is excluded */
+        PRUNED,
+        /** files skipped because the destination index knows them as up to date */
+        UP_TO_DATE,
+        /** files skipped because the destination has the same content */
+        IDENTICAL,
+        /** files copied without variables substitution */
+        COPIED,
+        /** files copied with variables substitution */
+        SUBSTITUTED,
+        /** deleted destination files or folders */
+        DELETED,
+        /** destination files or folders renamed after the source was moved */
+        MOVED,
+        /** failed copy or delete operations */
+        FAILED,
+        /** bytes written to the destination files */
+        BYTES_WRITTEN,
+        /** destination files or folders refreshed in the workspace */
+        REFRESHED
+    }
+
+    /**
+     * Gets the metrics of all builds, after they are complete
+     */
+    public interface Listener {
+        void buildFinished(BuildMetrics metrics);
+    }
+
+    private static final String EXPORT_FILE = System.getProperty("fs.metricsfile");
+
+    /** key is the project name */
+    private static final Map<String, BuildMetrics> LAST = new ConcurrentHashMap<String, BuildMetrics>();
+
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<Listener>();
+
+    private final String projectName;
+
+    private final String kind;
+
+    private final long startTime;
+
+    private final long startNanos;
+
+    private final AtomicLongArray times;
+
+    private final AtomicLongArray counts;
+
+    private long duration;
+
+    private boolean finished;
+
+    private boolean refreshPending;
+
+    private boolean published;
+
+    /**
+     * @param projectName name of the built project
+     * @param kind build kind, like "Full" or "Incremental"
+     */
+    public BuildMetrics(String projectName, String kind) {
+        this.projectName = projectName;
+        this.kind = kind;
+        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        times = new AtomicLongArray(Phase.values().length);
+        counts = new AtomicLongArray(Counter.values().length);
+    }
+
+    /**
+     * @return the metrics of the last completed build of given project, or null
+     */
+    public static BuildMetrics getLast(String projectName) {
+        return LAST.get(projectName);
+    }
+
+    public static void addListener(Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * @param phase
+     * @param startNanos value of {@link System#nanoTime()} at the phase start
+     */
+    public void addTime(Phase phase, long startNanos) {
+        times.addAndGet(phase.ordinal(), System.nanoTime() - startNanos);
+    }
+
+    public void increment(Counter counter) {
+        counts.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(Counter counter, long value) {
+        counts.addAndGet(counter.ordinal(), value);
+    }
+
+    /**
+     * @return time spent in given phase, in milliseconds
+     */
+    public long getTime(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(times.get(phase.ordinal()));
+    }
+
+    public long getCount(Counter counter) {
+        return counts.get(counter.ordinal());
+    }
+
+    public String getProjectName() {
+        return projectName;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * @return build start time, in milliseconds since epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return build duration (without the destination refresh), in milliseconds
+     */
+    public synchronized long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Marks the destination refresh as pending: metrics are published only after
+     * {@link #refreshed(long, int)} is called
+     */
+    synchronized void refreshScheduled() {
+        refreshPending = true;
+    }
+
+    /**
+     * @param startNanos value of {@link System#nanoTime()} at the refresh start
+     * @param count number of refreshed destination files or folders
+     */
+    void refreshed(long startNanos, int count) {
+        addTime(Phase.REFRESH, startNanos);
+        add(Counter.REFRESHED, count);
+        synchronized (this) {
+            refreshPending = false;
+            if (!finished) {
+                return;
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Should be called at the build end, after the wizard was cleaned up
+     */
+    void finish() {
+        synchronized (this) {
+            duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            finished = true;
+            if (refreshPending) {
+                return;
+            }
+        }
+        publish();
+    }
+
+    private void publish() {
+        synchronized (this) {
+            if (published) {
+                return;
+            }
+            published = true;
+        }
+        LAST.put(projectName, this);
+        for (Listener listener : LISTENERS) {
+            listener.buildFinished(this);
+        }
+        FileSyncPlugin plugin = FileSyncPlugin.getDefault();
+        if (plugin != null && plugin.isDebugging()) {
+            FileSyncPlugin.log(toString(), null, IStatus.INFO);
+        }
+        if (EXPORT_FILE != null && EXPORT_FILE.length() > 0) {
+            export(new File(EXPORT_FILE));
+        }
+    }
+
+    /**
+     * Appends the metrics as one line JSON object to given file
+     */
+    private void export(File file) {
+        String json = toJson();
+        synchronized (BuildMetrics.class) {
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+                writer.write(json);
+                writer.write('\n');
+            } catch (IOException e) {
+                FileSyncPlugin.log("Could not write build metrics to '" + file + "'", e,
+                        IStatus.WARNING);
+            } finally {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the metrics as JSON object, phase times are in milliseconds
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"project\":");
+        appendJsonString(sb, projectName);
+        sb.append(",\"kind\":");
+        appendJsonString(sb, kind);
+        sb.append(",\"start\":").append(startTime);
+        sb.append(",\"duration\":").append(getDuration());
+        Phase[] phases = Phase.values();
+        sb.append(",\"times\":{");
+        for (int i = 0; i < phases.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(phases[i].name().toLowerCase(Locale.ENGLISH)).append("\":")
+                    .append(getTime(phases[i]));
+        }
+        Counter[] counters = Counter.values();
+        sb.append("},\"counts\":{");
+        for (int i = 0; i < counters.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(counters[i].name().toLowerCase(Locale.ENGLISH)).append("\":")
+                    .append(getCount(counters[i]));
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return kind + " file sync of project '" + projectName + "' took "
+                + getDuration() + " ms (traverse " + getTime(Phase.TRAVERSE)
+                + ", match " + getTime(Phase.MATCH) + ", copy " + getTime(Phase.COPY)
+                + ", delete " + getTime(Phase.DELETE) + ", wait " + getTime(Phase.WAIT)
+                + ", index " + getTime(Phase.INDEX) + ", refresh "
+                + getTime(Phase.REFRESH) + " ms): visited " + getCount(Counter.VISITED)
+                + " resources, matched " + getCount(Counter.MATCHED) + ", skipped "
+                + getCount(Counter.FILTERED) + " metadata only changes, "
+                + getCount(Counter.PRUNED) + " excluded folders, "
+                + getCount(Counter.UP_TO_DATE) + " up to date and "
+                + getCount(Counter.IDENTICAL) + " identical files, copied "
+                + getCount(Counter.COPIED) + " and substituted "
+                + getCount(Counter.SUBSTITUTED) + " files ("
+                + getCount(Counter.BYTES_WRITTEN) + " bytes), deleted "
+                + getCount(Counter.DELETED) + ", moved " + getCount(Counter.MOVED)
+                + ", failed " + getCount(Counter.FAILED)
+                + ", refreshed " + getCount(Counter.REFRESHED);
+    }
+}
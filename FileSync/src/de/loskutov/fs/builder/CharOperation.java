@@ -335,6 +335,32 @@ public final class CharOperation {
             char[] filepath,
             boolean isCaseSensitive,
             char pathSeparator) {
+        if (filepath == null)
+        {
+            return false; // null name cannot match
+        }
+        return pathMatch(pattern, filepath, filepath.length, isCaseSensitive,
+                pathSeparator);
+    }
+
+    /**
+     * Same as {@link #pathMatch(char[], char[], boolean, char)}, but only the first
+     * filepathLength characters of the filepath array are considered, so that the
+     * same buffer could be reused for different paths.
+     *
+     * @param pattern the given pattern
+     * @param filepath the given path
+     * @param filepathLength the length of the path in the filepath array
+     * @param isCaseSensitive to find out whether or not the matching should be case sensitive
+     * @param pathSeparator the given path separator
+     * @return true if the pattern matches the filepath using the pathSepatator, false otherwise
+     */
+    public static final boolean pathMatch(
+            char[] pattern,
+            char[] filepath,
+            int filepathLength,
+            boolean isCaseSensitive,
+            char pathSeparator) {
 
         if (filepath == null)
         {
@@ -357,7 +383,7 @@ public final class CharOperation {
         boolean freeTrailingDoubleStar = pattern[pLength - 1] == pathSeparator;
 
         // offsets inside filepath
-        int fSegmentStart, fLength = filepath.length;
+        int fSegmentStart, fLength = filepathLength;
         if (filepath[0] != pathSeparator){
             fSegmentStart = 0;
         } else {
@@ -366,7 +392,7 @@ public final class CharOperation {
         if (fSegmentStart != pSegmentStart) {
             return false; // both must start with a separator or none.
         }
-        int fSegmentEnd = CharOperation.indexOf(pathSeparator, filepath, fSegmentStart+1);
+        int fSegmentEnd = indexOf(pathSeparator, filepath, fSegmentStart+1, fLength);
         if (fSegmentEnd < 0) {
             fSegmentEnd = fLength;
         }
@@ -405,10 +431,11 @@ public final class CharOperation {
             }
 
             fSegmentEnd =
-                    CharOperation.indexOf(
+                    indexOf(
                             pathSeparator,
                             filepath,
-                            fSegmentStart = fSegmentEnd + 1);
+                            fSegmentStart = fSegmentEnd + 1,
+                            fLength);
             // skip separator
             if (fSegmentEnd < 0) {
                 fSegmentEnd = fLength;
@@ -453,7 +480,7 @@ public final class CharOperation {
                 }
 
                 fSegmentRestart =
-                        CharOperation.indexOf(pathSeparator, filepath, fSegmentRestart + 1);
+                        indexOf(pathSeparator, filepath, fSegmentRestart + 1, fLength);
                 // skip separator
                 if (fSegmentRestart < 0) {
                     fSegmentRestart = fLength;
@@ -461,7 +488,7 @@ public final class CharOperation {
                     fSegmentRestart++;
                 }
                 fSegmentEnd =
-                        CharOperation.indexOf(pathSeparator, filepath, fSegmentStart = fSegmentRestart);
+                        indexOf(pathSeparator, filepath, fSegmentStart = fSegmentRestart, fLength);
                 if (fSegmentEnd < 0) {
                     fSegmentEnd = fLength;
                 }
@@ -502,7 +529,7 @@ public final class CharOperation {
                 }
 
                 fSegmentRestart =
-                        CharOperation.indexOf(pathSeparator, filepath, fSegmentRestart + 1);
+                        indexOf(pathSeparator, filepath, fSegmentRestart + 1, fLength);
                 // skip separator
                 if (fSegmentRestart < 0) {
                     fSegmentRestart = fLength;
@@ -510,7 +537,7 @@ public final class CharOperation {
                     fSegmentRestart++;
                 }
                 fSegmentEnd =
-                        CharOperation.indexOf(pathSeparator, filepath, fSegmentStart = fSegmentRestart);
+                        indexOf(pathSeparator, filepath, fSegmentStart = fSegmentRestart, fLength);
                 if (fSegmentEnd < 0) {
                     fSegmentEnd = fLength;
                 }
@@ -528,10 +555,11 @@ public final class CharOperation {
             }
 
             fSegmentEnd =
-                    CharOperation.indexOf(
+                    indexOf(
                             pathSeparator,
                             filepath,
-                            fSegmentStart = fSegmentEnd + 1);
+                            fSegmentStart = fSegmentEnd + 1,
+                            fLength);
             // skip separator
             if (fSegmentEnd < 0) {
                 fSegmentEnd = fLength;
@@ -546,6 +574,18 @@ public final class CharOperation {
                 || (pSegmentStart == pLength && freeTrailingDoubleStar);
     }
 
+    /**
+     * Same as {@link #indexOf(char, char[], int)}, but doesn't look beyond given end
+     */
+    private static int indexOf(char toBeFound, char[] array, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (toBeFound == array[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Answers a new array which is a copy of the given array starting at the given start and
      * ending at the given end. The given start is inclusive and the given end is exclusive.
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+
+import de.loskutov.fs.FileSyncPlugin;
+
+/**
+ * Bounded pool of worker threads which performs single file copy operations for full
+ * and clean builds. Directories are still created by the caller (builder) thread, so
+ * that they always exist before the copy of any child file is started.
+ * <p>
+ * The queue is bounded: if all workers are busy and the queue is full, the caller
+ * thread copies the file itself, so that the visitor can't run away from the workers.
+ * @author Andrey
+ */
+class CopyExecutor {
+
+    /**
+     * System property to set the number of copy threads. Values less then 2 disable
+     * parallel copy. Default is the number of available processors.
+     */
+    static final String KEY_COPY_THREADS = "fs.copythreads";
+
+    private static final int QUEUE_SIZE_PER_THREAD = 64;
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final ThreadPoolExecutor pool;
+
+    private final IProgressMonitor monitor;
+
+    private final AtomicInteger failed;
+
+    private final AtomicInteger copied;
+
+    /**
+     * @param threads number of worker threads, should be greater then 1
+     * @param monitor used only to check for cancellation
+     */
+    CopyExecutor(int threads, IProgressMonitor monitor) {
+        this.monitor = monitor;
+        failed = new AtomicInteger();
+        copied = new AtomicInteger();
+        final String prefix = "FileSync copy #" + POOL_COUNT.incrementAndGet() + "-";
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_SIZE_PER_THREAD),
+                factory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @return configured number of copy threads, values less then 2 mean that
+     * parallel copy should not be used
+     */
+    static int getThreadCount() {
+        int defaultCount = Runtime.getRuntime().availableProcessors();
+        return Integer.getInteger(KEY_COPY_THREADS, defaultCount).intValue();
+    }
+
+    /**
+     * Schedules given copy operation. The operation is silently skipped if the
+     * monitor is cancelled before it is started.
+     * @param operation should return true if the copy was successful. Operation
+     * is responsible to report the failure details itself.
+     */
+    void submit(final Callable<Boolean> operation) {
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (monitor.isCanceled()) {
+                    return;
+                }
+                boolean ok;
+                try {
+                    ok = operation.call().booleanValue();
+                } catch (Exception e) {
+                    FileSyncPlugin.log("Unexpected error during file copy", e,
+                            IStatus.WARNING);
+                    ok = false;
+                }
+                if (ok) {
+                    copied.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all scheduled operations are finished and stops all worker threads.
+     * @return true if all operations were successful
+     */
+    boolean shutdown() {
+        pool.shutdown();
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failed.get() == 0;
+    }
+
+    /**
+     * @return number of scheduled but not yet finished operations
+     */
+    int getPendingCount() {
+        return pool.getQueue().size() + pool.getActiveCount();
+    }
+
+    /**
+     * @return number of successfully finished operations
+     */
+    int getCopiedCount() {
+        return copied.get();
+    }
+
+    /**
+     * @return number of failed operations
+     */
+    int getFailedCount() {
+        return failed.get();
+    }
+}
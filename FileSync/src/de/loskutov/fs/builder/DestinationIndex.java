@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IStatus;
+
+import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.command.AtomicFileOutputStream;
+import de.loskutov.fs.command.ContentHash;
+import de.loskutov.fs.command.FileMapping;
+
+/**
+ * Remembers the state of all source files which were successfully copied to the
+ * destination, per project and per mapping. If the size and the modification time of
+ * the source file is the same as remembered, the destination is considered to be up to
+ * date and is not touched at all (so no stat calls on the possibly remote destination
+ * file system are needed).
+ * <p>
+ * If the content comparison is enabled, the index also remembers the content hash of
+ * the source files, keyed by the resource modification stamp, so that unchanged sources
+ * are never read twice.
+ * <p>
+ * The index is stored in the project working location in the plugin state area, and
+ * is dropped on clean builds. If the destination files are modified or deleted by
+ * someone else, a clean build is required to get them back in sync.
+ * <p>
+ * All changes are also appended to the {@link SyncJournal} until the index is saved
+ * again, so that a build interrupted by a crash continues with the files not yet
+ * copied. Interrupted clean builds are continued by the next clean build: the index
+ * is not dropped again and the destinations which were already deleted are not
+ * deleted twice.
+ * @author Andrey
+ */
+public class DestinationIndex {
+
+    private static final String INDEX_FILE = "destination.index";
+
+    private static final String JOURNAL_FILE = "destination.journal";
+
+    private static final int VERSION = 3;
+
+    /** index is saved (and journal truncated) if the journal has more records */
+    private static final int COMPACT_LIMIT = Integer.getInteger("fs.journalsize", 50000)
+            .intValue();
+
+    /**
+     * key is IProject, value is corresponding DestinationIndex
+     */
+    private static final Map<IProject, DestinationIndex> projectsToIndex = new HashMap<IProject, DestinationIndex>();
+
+    private final IProject project;
+
+    /**
+     * key is mapping signature, value is the map from the project relative source
+     * path to the state of the source file at the time it was copied. Sections are
+     * sorted, so that all children of a removed folder are found by a range lookup.
+     */
+    private final Map<String, NavigableMap<String, FileState>> sections;
+
+    /**
+     * Used during the build only, to avoid re-computation of mapping signatures.
+     * Never modified, but replaced by {@link #init(FileMapping[], boolean, IPath)},
+     * which could run while copy threads of another build read it without lock.
+     */
+    private volatile Map<FileMapping, NavigableMap<String, FileState>> mappingToSection;
+
+    /**
+     * key is the project relative source path, value is the source file modification
+     * stamp and content hash. Sorted like the sections.
+     */
+    private final NavigableMap<String, long[]> sourceHashes;
+
+    /**
+     * key is the section, value is the section signature, for the journal records
+     */
+    private final Map<NavigableMap<String, FileState>, String> sectionToSignature;
+
+    /**
+     * project relative source paths which destinations were already deleted by the
+     * current (or interrupted) clean build
+     */
+    private final Set<String> cleanedPaths;
+
+    /** true after clean build was started and until it was completed */
+    private boolean cleanInProgress;
+
+    /** incremented on each save, see {@link SyncJournal} */
+    private long generation;
+
+    /** created on first change after the index was loaded or saved */
+    private SyncJournal journal;
+
+    private volatile boolean dirty;
+
+    private DestinationIndex(IProject project) {
+        this.project = project;
+        sections = new HashMap<String, NavigableMap<String, FileState>>();
+        mappingToSection = Collections.emptyMap();
+        sourceHashes = new ConcurrentSkipListMap<String, long[]>();
+        sectionToSignature = new IdentityHashMap<NavigableMap<String, FileState>, String>();
+        cleanedPaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * @return the index for the given project, never null
+     */
+    public static synchronized DestinationIndex getInstance(IProject project) {
+        DestinationIndex index = projectsToIndex.get(project);
+        if (index == null) {
+            index = new DestinationIndex(project);
+            index.load();
+            projectsToIndex.put(project, index);
+        }
+        return index;
+    }
+
+    public static synchronized void removeInstance(IProject project) {
+        DestinationIndex index = projectsToIndex.remove(project);
+        if (index != null) {
+            index.closeJournal();
+        }
+    }
+
+    /**
+     * Prepares the index to be used with given mappings. Must be called before any
+     * other access from the builder thread.
+     * @param mappings all current project mappings
+     * @param useCurrentDate true if destination files get current date instead of the
+     * source file date
+     * @param defaultRoot resolved default target folder of the project, may be null
+     */
+    public synchronized void init(FileMapping[] mappings, boolean useCurrentDate,
+            IPath defaultRoot) {
+        Map<FileMapping, NavigableMap<String, FileState>> newSections = new IdentityHashMap<FileMapping, NavigableMap<String, FileState>>();
+        for (int i = 0; i < mappings.length; i++) {
+            FileMapping fm = mappings[i];
+            String signature = getSignature(fm, useCurrentDate, defaultRoot);
+            newSections.put(fm, getSection(signature));
+        }
+        mappingToSection = Collections.unmodifiableMap(newSections);
+        // forget mappings which are not used anymore
+        for (Iterator<String> iter = sections.keySet().iterator(); iter.hasNext();) {
+            NavigableMap<String, FileState> section = sections.get(iter.next());
+            if (!newSections.containsValue(section)) {
+                iter.remove();
+                sectionToSignature.remove(section);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Any change in the mapping itself, in the resolved destination folder or in the
+     * variables used for substitution results in a new signature, so that all files
+     * are copied again. The encoded mapping alone is not enough: it contains neither
+     * the default target folder nor the current values of path variables.
+     */
+    private static String getSignature(FileMapping fm, boolean useCurrentDate,
+            IPath defaultRoot) {
+        StringBuilder sb = new StringBuilder(fm.encode());
+        sb.append(FileMapping.MAP_SEPARATOR).append(useCurrentDate);
+        IPath destination = fm.getDestinationPath();
+        if (destination == null) {
+            destination = defaultRoot;
+        }
+        sb.append(FileMapping.MAP_SEPARATOR);
+        if (destination != null) {
+            sb.append(destination.toOSString());
+        }
+        if (fm.getVariables() != null) {
+            sb.append(FileMapping.MAP_SEPARATOR).append(fm.getVariables().hashCode());
+        }
+        return sb.toString();
+    }
+
+    private NavigableMap<String, FileState> getSection(String signature) {
+        NavigableMap<String, FileState> section = sections.get(signature);
+        if (section == null) {
+            section = new ConcurrentSkipListMap<String, FileState>();
+            sections.put(signature, section);
+            sectionToSignature.put(section, signature);
+        }
+        return section;
+    }
+
+    /**
+     * Forgets all remembered files, so that all files will be checked again
+     */
+    private void clear() {
+        for (Iterator<NavigableMap<String, FileState>> iter = sections.values()
+                .iterator(); iter.hasNext();) {
+            iter.next().clear();
+        }
+        cleanedPaths.clear();
+        dirty = true;
+    }
+
+    /**
+     * Should be called before the clean build starts. If the last clean build was not
+     * completed, the state remembered since it was started is kept and the new build
+     * continues the old one, otherwise all remembered files are forgotten.
+     * @return true if the interrupted clean build is continued
+     */
+    public synchronized boolean startCleanBuild() {
+        if (cleanInProgress) {
+            return true;
+        }
+        clear();
+        cleanInProgress = true;
+        SyncJournal j = getJournal();
+        if (j != null) {
+            j.cleanStarted();
+        }
+        return false;
+    }
+
+    /**
+     * Should be called after the clean build was completed or cancelled by the user,
+     * so that the next clean build is not continuing it
+     */
+    public synchronized void finishCleanBuild() {
+        if (!cleanInProgress) {
+            return;
+        }
+        cleanInProgress = false;
+        cleanedPaths.clear();
+        dirty = true;
+        SyncJournal j = getJournal();
+        if (j != null) {
+            j.cleanFinished();
+        }
+    }
+
+    /**
+     * @param relativePath project relative source path
+     * @return true if the destination of given path was already deleted by the current
+     * clean build
+     */
+    public boolean isCleaned(String relativePath) {
+        return cleanInProgress && cleanedPaths.contains(relativePath);
+    }
+
+    /**
+     * Remembers that the destination of given path was deleted by the current clean
+     * build
+     * @param relativePath project relative source path
+     */
+    public synchronized void setCleaned(String relativePath) {
+        if (!cleanInProgress || !cleanedPaths.add(relativePath)) {
+            return;
+        }
+        dirty = true;
+        SyncJournal j = getJournal();
+        if (j != null) {
+            j.cleaned(relativePath);
+        }
+    }
+
+    /**
+     * @param relativePath project relative source path
+     * @param modificationStamp current modification stamp of the source resource
+     * @return the remembered content hash of the source file, or
+     * {@link ContentHash#UNKNOWN} if the file was changed since the hash was computed
+     */
+    public long getSourceHash(String relativePath, long modificationStamp) {
+        long[] stampAndHash = sourceHashes.get(relativePath);
+        if (stampAndHash == null || stampAndHash[0] != modificationStamp) {
+            return ContentHash.UNKNOWN;
+        }
+        return stampAndHash[1];
+    }
+
+    /**
+     * @param relativePath project relative source path
+     * @param modificationStamp modification stamp of the source resource at the time the
+     * hash was computed
+     * @param hash content hash of the source file
+     */
+    public void putSourceHash(String relativePath, long modificationStamp, long hash) {
+        sourceHashes.put(relativePath, new long[] { modificationStamp, hash });
+        dirty = true;
+    }
+
+    /**
+     * @param fm mapping, must be known by the last {@link #init(FileMapping[], boolean, IPath)} call
+     * @param relativePath project relative source path
+     * @param size current size of the source file
+     * @param lastModified current modification time of the source file
+     * @return true, if the given source file was already copied to the destination and is
+     * not changed since then
+     */
+    public boolean isUpToDate(FileMapping fm, String relativePath, long size,
+            long lastModified) {
+        NavigableMap<String, FileState> section = mappingToSection.get(fm);
+        if (section == null) {
+            return false;
+        }
+        FileState state = section.get(relativePath);
+        if (state == null) {
+            return false;
+        }
+        return state.size == size && state.lastModified == lastModified;
+    }
+
+    /**
+     * Remembers the state of the source file which was successfully copied to the
+     * destination.
+     * @param fm mapping, must be known by the last {@link #init(FileMapping[], boolean, IPath)} call
+     * @param relativePath project relative source path
+     * @param size size of the source file
+     * @param lastModified source file modification time, as it was before the copy
+     * @param hash source content hash, or {@link ContentHash#UNKNOWN}
+     * @param destinationStamp the modification time of the written destination file
+     */
+    public synchronized void update(FileMapping fm, String relativePath, long size,
+            long lastModified, long hash, long destinationStamp) {
+        NavigableMap<String, FileState> section = mappingToSection.get(fm);
+        if (section == null) {
+            return;
+        }
+        FileState state = new FileState(size, lastModified, hash, destinationStamp);
+        section.put(relativePath, state);
+        dirty = true;
+        SyncJournal j = getJournal();
+        if (j != null) {
+            j.update(sectionToSignature.get(section), relativePath, state);
+            if (j.getRecordCount() >= COMPACT_LIMIT) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Forgets the given source path (and all children, if the path is a folder) for
+     * given mapping.
+     * @param fm mapping, must be known by the last {@link #init(FileMapping[], boolean, IPath)} call
+     * @param relativePath project relative source path
+     * @param isFolder true if the path is a folder
+     */
+    public synchronized void remove(FileMapping fm, IPath relativePath, boolean isFolder) {
+        NavigableMap<String, FileState> section = mappingToSection.get(fm);
+        if (section == null || section.isEmpty()) {
+            return;
+        }
+        String path = relativePath.toString();
+        boolean removed;
+        if (isFolder) {
+            // children too: removed folders may be deleted without deltas of the children
+            remove(sourceHashes, path);
+            removed = remove(section, path);
+        } else {
+            sourceHashes.remove(path);
+            removed = section.remove(path) != null;
+        }
+        if (removed) {
+            dirty = true;
+            SyncJournal j = getJournal();
+            if (j != null) {
+                j.remove(sectionToSignature.get(section), path);
+            }
+        }
+    }
+
+    /**
+     * Removes given path and all paths below it
+     */
+    private static boolean remove(NavigableMap<String, ?> section, String path) {
+        boolean removed = section.remove(path) != null;
+        String prefix = path + "/";
+        Map<String, ?> children = section.subMap(prefix, true, prefix
+                + Character.MAX_VALUE, false);
+        if (!children.isEmpty()) {
+            children.clear();
+            removed = true;
+        }
+        return removed;
+    }
+
+    private File getIndexFile() {
+        return getStateFile(INDEX_FILE);
+    }
+
+    private File getStateFile(String name) {
+        IPath location = project.getWorkingLocation(FileSyncPlugin.PLUGIN_ID);
+        if (location == null) {
+            return null;
+        }
+        return location.append(name).toFile();
+    }
+
+    private SyncJournal getJournal() {
+        if (journal == null) {
+            File file = getStateFile(JOURNAL_FILE);
+            if (file != null) {
+                journal = new SyncJournal(file, generation);
+            }
+        }
+        return journal;
+    }
+
+    private synchronized void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Applies the journal of the last loaded index generation
+     */
+    private void replayJournal() {
+        File file = getStateFile(JOURNAL_FILE);
+        if (file == null) {
+            return;
+        }
+        int count = SyncJournal.replay(file, generation, new SyncJournal.Listener() {
+            @Override
+            public void update(String signature, String path, FileState state) {
+                getSection(signature).put(path, state);
+            }
+
+            @Override
+            public void remove(String signature, String path) {
+                DestinationIndex.remove(getSection(signature), path);
+            }
+
+            @Override
+            public void cleanStarted() {
+                clear();
+                cleanInProgress = true;
+            }
+
+            @Override
+            public void cleaned(String path) {
+                cleanedPaths.add(path);
+            }
+
+            @Override
+            public void cleanFinished() {
+                cleanInProgress = false;
+                cleanedPaths.clear();
+            }
+        });
+        if (count > 0) {
+            // compact: write restored state and start new journal
+            dirty = true;
+            save();
+        } else {
+            file.delete();
+        }
+    }
+
+    private void load() {
+        loadIndex();
+        replayJournal();
+    }
+
+    private void loadIndex() {
+        File file = getIndexFile();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            generation = in.readLong();
+            cleanInProgress = in.readBoolean();
+            int cleanedCount = in.readInt();
+            for (int i = 0; i < cleanedCount; i++) {
+                cleanedPaths.add(in.readUTF());
+            }
+            int sectionCount = in.readInt();
+            for (int i = 0; i < sectionCount; i++) {
+                String signature = in.readUTF();
+                int count = in.readInt();
+                NavigableMap<String, FileState> section = new ConcurrentSkipListMap<String, FileState>();
+                for (int j = 0; j < count; j++) {
+                    String path = in.readUTF();
+                    section.put(path, new FileState(in.readLong(), in.readLong(), in
+                            .readLong(), in.readLong()));
+                }
+                sections.put(signature, section);
+                sectionToSignature.put(section, signature);
+            }
+            int hashCount = in.readInt();
+            for (int i = 0; i < hashCount; i++) {
+                String path = in.readUTF();
+                sourceHashes.put(path, new long[] { in.readLong(), in.readLong() });
+            }
+        } catch (IOException e) {
+            sections.clear();
+            sectionToSignature.clear();
+            sourceHashes.clear();
+            cleanedPaths.clear();
+            cleanInProgress = false;
+            FileSyncPlugin.log("Could not read destination index for project '"
+                    + project.getName() + "'", e, IStatus.WARNING);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the index to the disk, if it was changed since last save, and deletes the
+     * journal which is not needed anymore
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File file = getIndexFile();
+        if (file == null) {
+            return;
+        }
+        // the old index stays valid (together with its journal) until the new one
+        // is completely written
+        AtomicFileOutputStream fout = null;
+        DataOutputStream out = null;
+        boolean saved = false;
+        try {
+            fout = AtomicFileOutputStream.open(file);
+            out = new DataOutputStream(new BufferedOutputStream(fout));
+            out.writeInt(VERSION);
+            out.writeLong(generation + 1);
+            out.writeBoolean(cleanInProgress);
+            Set<String> cleaned = new HashSet<String>(cleanedPaths);
+            out.writeInt(cleaned.size());
+            for (String path : cleaned) {
+                out.writeUTF(path);
+            }
+            out.writeInt(sections.size());
+            for (Entry<String, NavigableMap<String, FileState>> entry : sections.entrySet()) {
+                out.writeUTF(entry.getKey());
+                // copy, because the section could be changed during the write
+                Map<String, FileState> section = new HashMap<String, FileState>(entry
+                        .getValue());
+                out.writeInt(section.size());
+                for (Entry<String, FileState> fileEntry : section.entrySet()) {
+                    FileState state = fileEntry.getValue();
+                    out.writeUTF(fileEntry.getKey());
+                    out.writeLong(state.size);
+                    out.writeLong(state.lastModified);
+                    out.writeLong(state.hash);
+                    out.writeLong(state.destinationStamp);
+                }
+            }
+            Map<String, long[]> hashes = new HashMap<String, long[]>(sourceHashes);
+            out.writeInt(hashes.size());
+            for (Entry<String, long[]> entry : hashes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+            out.flush();
+            fout.commit();
+            saved = true;
+        } catch (IOException e) {
+            FileSyncPlugin.log("Could not write destination index for project '"
+                    + project.getName() + "'", e, IStatus.WARNING);
+        } finally {
+            if (fout != null) {
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                    // ignore, the old index is still there
+                }
+            }
+        }
+        if (saved) {
+            generation++;
+            dirty = false;
+            if (journal != null) {
+                journal.delete();
+                journal = null;
+            } else {
+                File journalFile = getStateFile(JOURNAL_FILE);
+                if (journalFile != null) {
+                    journalFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one source file at the time it was copied
+     */
+    static final class FileState {
+        final long size;
+
+        final long lastModified;
+
+        /** content hash, 0 if unknown */
+        final long hash;
+
+        final long destinationStamp;
+
+        FileState(long size, long lastModified, long hash, long destinationStamp) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.destinationStamp = destinationStamp;
+        }
+    }
+}
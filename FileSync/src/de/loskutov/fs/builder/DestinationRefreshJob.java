@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.core.filesystem.URIUtil;
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.resources.WorkspaceJob;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+
+import de.loskutov.fs.FileSyncPlugin;
+
+/**
+ * Refreshes workspace resources corresponding to destination files which were
+ * written or deleted by the file sync. Only the changed resources are refreshed (not
+ * the whole destination folders), and the changes from builds following each other
+ * are collected and refreshed at once, after a short delay.
+ * <p>
+ * Refresh of the destination resources in the workspace starts the builders of the
+ * destination projects, so that it should happen as seldom as possible.
+ * @author Andrey
+ */
+public class DestinationRefreshJob extends WorkspaceJob {
+
+    /** delay in milliseconds, to collect changes from following builds */
+    private static final long DELAY = Long.getLong("fs.refreshdelay", 500).longValue();
+
+    /** if there are more changed files in one folder, the folder is refreshed instead */
+    private static final int MAX_FILES_PER_FOLDER = 32;
+
+    private static DestinationRefreshJob instance;
+
+    /**
+     * key is the changed destination file or folder, value is true if all children
+     * should be refreshed too
+     */
+    private final Map<File, Boolean> pending;
+
+    /** metrics of the builds waiting for this refresh */
+    private final List<BuildMetrics> pendingMetrics;
+
+    private DestinationRefreshJob() {
+        super("Refresh of FileSync destination folders");
+        pending = new HashMap<File, Boolean>();
+        pendingMetrics = new ArrayList<BuildMetrics>();
+        setSystem(true);
+        setRule(ResourcesPlugin.getWorkspace().getRoot());
+    }
+
+    /**
+     * Schedules the refresh of the given destination files
+     * @param changes key is the changed destination file or folder, value is true if
+     * all children should be refreshed too
+     * @param metrics metrics of the build which made the changes, gets the refresh
+     * time after the refresh is done
+     */
+    static void refresh(Map<File, Boolean> changes, BuildMetrics metrics) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        metrics.refreshScheduled();
+        DestinationRefreshJob job;
+        synchronized (DestinationRefreshJob.class) {
+            if (instance == null) {
+                instance = new DestinationRefreshJob();
+            }
+            job = instance;
+        }
+        job.add(changes, metrics);
+        job.schedule(DELAY);
+    }
+
+    private synchronized void add(Map<File, Boolean> changes, BuildMetrics metrics) {
+        add(changes);
+        pendingMetrics.add(metrics);
+    }
+
+    private synchronized void add(Map<File, Boolean> changes) {
+        merge(pending, changes);
+    }
+
+    /**
+     * Adds the changes to the pending ones, a path changed as folder stays a folder
+     * @param pending key is the destination file or folder, value is true for folders
+     * @param changes same as pending
+     */
+    public static void merge(Map<File, Boolean> pending, Map<File, Boolean> changes) {
+        for (Entry<File, Boolean> entry : changes.entrySet()) {
+            if (entry.getValue().booleanValue()) {
+                pending.put(entry.getKey(), Boolean.TRUE);
+            } else if (!pending.containsKey(entry.getKey())) {
+                pending.put(entry.getKey(), Boolean.FALSE);
+            }
+        }
+    }
+
+    private synchronized Map<File, Boolean> takePending() {
+        Map<File, Boolean> changes = new HashMap<File, Boolean>(pending);
+        pending.clear();
+        return changes;
+    }
+
+    private synchronized List<BuildMetrics> takePendingMetrics() {
+        List<BuildMetrics> metrics = new ArrayList<BuildMetrics>(pendingMetrics);
+        pendingMetrics.clear();
+        return metrics;
+    }
+
+    /**
+     * Not in the {@link FileSyncBuilder} family: the builder starts a full sync after
+     * mapping changes only if no job of its family is found, and this job is pending
+     * after almost every build.
+     */
+    @Override
+    public boolean belongsTo(Object family) {
+        return family == DestinationRefreshJob.class;
+    }
+
+    @Override
+    public IStatus runInWorkspace(IProgressMonitor monitor) {
+        long start = System.nanoTime();
+        List<BuildMetrics> metrics = takePendingMetrics();
+        Map<File, Boolean> changes = collapse(takePending());
+        List<File> files = new ArrayList<File>(changes.keySet());
+        monitor.beginTask(getName(), files.size());
+        IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
+        int refreshed = 0;
+        for (int i = 0; i < files.size(); i++) {
+            if (monitor.isCanceled()) {
+                // do not lose the rest
+                add(changes);
+                break;
+            }
+            File file = files.get(i);
+            // the type is known by the sync: no stat calls on the destination
+            boolean isFolder = changes.remove(file).booleanValue();
+            URI location = URIUtil.toURI(Path.fromOSString(file.getAbsolutePath()));
+            IResource[] resources;
+            if (isFolder) {
+                resources = root.findContainersForLocationURI(location);
+            } else {
+                resources = root.findFilesForLocationURI(location);
+            }
+            for (int j = 0; j < resources.length; j++) {
+                refresh(resources[j], monitor);
+            }
+            refreshed++;
+            monitor.worked(1);
+        }
+        for (int i = 0; i < metrics.size(); i++) {
+            metrics.get(i).refreshed(start, refreshed);
+        }
+        monitor.done();
+        return Status.OK_STATUS;
+    }
+
+    private static void refresh(IResource resource, IProgressMonitor monitor) {
+        // parent folders could be created by the sync too: refresh the topmost new one
+        IResource target = resource;
+        IContainer parent = target.getParent();
+        while (parent != null && parent.getType() != IResource.ROOT && !parent.exists()) {
+            target = parent;
+            parent = target.getParent();
+        }
+        int depth = target instanceof IFile ? IResource.DEPTH_ZERO
+                : IResource.DEPTH_INFINITE;
+        try {
+            target.refreshLocal(depth, monitor);
+        } catch (CoreException e) {
+            FileSyncPlugin.log("Failed to refresh destination resource '"
+                    + target.getFullPath() + "' after file sync", e, IStatus.WARNING);
+        }
+    }
+
+    /**
+     * Removes all files which are children of other changed folders, and replaces
+     * files by their parent folder if too many files from the same folder are changed.
+     * @return the minimal set of destination files/folders to refresh, value is true
+     * for folders
+     */
+    public static Map<File, Boolean> collapse(Map<File, Boolean> changes) {
+        // count changed files per parent folder
+        Map<File, Integer> perFolder = new HashMap<File, Integer>();
+        for (Entry<File, Boolean> entry : changes.entrySet()) {
+            File parent = entry.getKey().getParentFile();
+            if (parent != null && !entry.getValue().booleanValue()) {
+                Integer count = perFolder.get(parent);
+                perFolder.put(parent, Integer.valueOf(count == null ? 1 : count
+                        .intValue() + 1));
+            }
+        }
+        Map<File, Boolean> all = new HashMap<File, Boolean>(changes);
+        for (Entry<File, Integer> entry : perFolder.entrySet()) {
+            if (entry.getValue().intValue() > MAX_FILES_PER_FOLDER) {
+                all.put(entry.getKey(), Boolean.TRUE);
+            }
+        }
+        Map<File, Boolean> result = new HashMap<File, Boolean>();
+        for (Iterator<Entry<File, Boolean>> iter = all.entrySet().iterator(); iter
+                .hasNext();) {
+            Entry<File, Boolean> entry = iter.next();
+            if (!hasRefreshedAncestor(entry.getKey(), all)) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasRefreshedAncestor(File file, Map<File, Boolean> all) {
+        File parent = file.getParentFile();
+        while (parent != null) {
+            if (Boolean.TRUE.equals(all.get(parent))) {
+                return true;
+            }
+            parent = parent.getParentFile();
+        }
+        return false;
+    }
+}
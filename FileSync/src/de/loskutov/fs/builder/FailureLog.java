@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IStatus;
+
+import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.command.FileMapping;
+
+/**
+ * Collects the failures of one build and logs one summary entry per failed
+ * operation and mapping at the build end, instead of one entry per file. If the
+ * destination is not writable, there would be otherwise one log entry for each
+ * mapped file, and the build would spend most of its time in logging.
+ * <p>
+ * If the {@link FileSyncPlugin#DEBUG_LOG} debug option is enabled, every failure is
+ * logged immediately. May be used concurrently by the copy threads.
+ * @author Andrey
+ */
+class FailureLog {
+
+    /** max. number of example resources listed in the summary */
+    private static final int MAX_EXAMPLES = 3;
+
+    private static final class Failures {
+        final String operation;
+
+        final FileMapping mapping;
+
+        final List<String> examples;
+
+        int count;
+
+        Failures(String operation, FileMapping mapping) {
+            this.operation = operation;
+            this.mapping = mapping;
+            examples = new ArrayList<String>(MAX_EXAMPLES);
+        }
+    }
+
+    /** key is the operation and mapping */
+    private final Map<String, Failures> failures;
+
+    FailureLog() {
+        failures = new LinkedHashMap<String, Failures>();
+    }
+
+    /**
+     * @param operation the failed operation, like "Failed to copy to external resource"
+     * @param mapping the mapping of the resource, may be null
+     * @param resource the resource or destination file
+     * @param projectName project of the resource
+     */
+    void add(String operation, FileMapping mapping, Object resource, String projectName) {
+        if (FileSyncPlugin.isLogDetails()) {
+            FileSyncPlugin.log(operation + " '" + resource + "', mapped in project '"
+                    + projectName + "'", null, IStatus.WARNING);
+            return;
+        }
+        String key = mapping == null ? operation : operation + '\n' + mapping;
+        synchronized (failures) {
+            Failures entry = failures.get(key);
+            if (entry == null) {
+                entry = new Failures(operation, mapping);
+                failures.put(key, entry);
+            }
+            entry.count++;
+            if (entry.examples.size() < MAX_EXAMPLES) {
+                entry.examples.add(String.valueOf(resource));
+            }
+        }
+    }
+
+    /**
+     * Logs the summary of all failures collected so far and forgets them
+     * @param projectName name of the built project
+     */
+    void flush(String projectName) {
+        List<Failures> list;
+        synchronized (failures) {
+            list = new ArrayList<Failures>(failures.values());
+            failures.clear();
+        }
+        for (Iterator<Failures> iter = list.iterator(); iter.hasNext();) {
+            Failures entry = iter.next();
+            StringBuilder sb = new StringBuilder();
+            sb.append(entry.operation).append(": ").append(entry.count);
+            sb.append(entry.count == 1 ? " resource" : " resources");
+            if (entry.mapping != null) {
+                sb.append(" of mapping '").append(entry.mapping).append('\'');
+            }
+            sb.append(" in project '").append(projectName).append("', e.g. ");
+            for (int i = 0; i < entry.examples.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append('\'').append(entry.examples.get(i)).append('\'');
+            }
+            if (entry.count > entry.examples.size()) {
+                sb.append(", ... (enable debug option '").append(FileSyncPlugin.DEBUG_LOG)
+                        .append("' to see all)");
+            }
+            FileSyncPlugin.log(sb.toString(), null, IStatus.WARNING);
+        }
+        FileSyncPlugin.flushLog();
+    }
+}
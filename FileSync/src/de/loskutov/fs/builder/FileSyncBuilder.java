@@ -16,6 +16,8 @@ import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.runtime.CoreException;
@@ -25,6 +27,7 @@ import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.core.runtime.preferences.IEclipsePreferences;
 import org.eclipse.core.runtime.preferences.IEclipsePreferences.IPreferenceChangeListener;
@@ -59,6 +62,19 @@ implements IPreferenceChangeListener {
 
     public static final Integer MAPPING_CHANGED_IN_GUI = Integer.valueOf(MAPPING_CHANGED_IN_GUI_BUILD);
 
+    /**
+     * Number of visited resources is not known in advance, so each visited resource
+     * consumes 1/WORK_REMAINING of the remaining progress
+     */
+    private static final int WORK_REMAINING = 1000;
+
+    /**
+     * Flags of changed resources which require a sync. Changes of markers, sync info,
+     * derived flag etc. don't change the destination files.
+     */
+    private static final int SYNC_FLAGS = IResourceDelta.CONTENT | IResourceDelta.REPLACED
+            | IResourceDelta.TYPE | IResourceDelta.ENCODING | IResourceDelta.LOCAL_CHANGED;
+
     private boolean wizardNotAvailable;
 
     private boolean disabled;
@@ -75,6 +91,12 @@ implements IPreferenceChangeListener {
 
     volatile private int visitorFlags;
 
+    /** true to collect the changes of automatic builds, see {@link WriteBehindJob} */
+    volatile private boolean debounceAutoBuild;
+
+    /** true to write the changes of incremental builds in background */
+    volatile private boolean writeBehind;
+
     private static final IProject [] NO_PROJECTS = new IProject[0];
 
     /** called by Eclipse through reflection */
@@ -136,6 +158,10 @@ implements IPreferenceChangeListener {
         SyncWizard wizard = new SyncWizard();
         IProject[] result = NO_PROJECTS;
         try {
+            if (!isDeferred(kind)) {
+                // collected changes must be synced before any other changes
+                WriteBehindJob.flushPending(getProjectInternal(), monitor);
+            }
             switch (kind) {
             case AUTO_BUILD:
                 result = buildAuto(args, props, wizard, monitor);
@@ -188,7 +214,18 @@ implements IPreferenceChangeListener {
      */
     private IProject[] buildAuto(Map args, ProjectProperties props, SyncWizard wizard,
             IProgressMonitor monitor) {
-        return buildIncremental(args, props, wizard, monitor);
+        return buildIncremental(args, props, wizard, monitor, AUTO_BUILD);
+    }
+
+    /**
+     * @return true if the changes of given build kind are only collected and synced
+     * later in background, see {@link WriteBehindJob}
+     */
+    private boolean isDeferred(int kind) {
+        if (kind == AUTO_BUILD) {
+            return debounceAutoBuild || writeBehind;
+        }
+        return kind == INCREMENTAL_BUILD && writeBehind;
     }
 
     /**
@@ -232,6 +269,19 @@ implements IPreferenceChangeListener {
      */
     private IProject[] buildIncremental(final Map args, final ProjectProperties props,
             final SyncWizard wizard, final IProgressMonitor monitor) {
+        return buildIncremental(args, props, wizard, monitor, INCREMENTAL_BUILD);
+    }
+
+    /**
+     * Incremental build
+     * @param args build parameters
+     * @param wizard
+     * @param monitor progress indicator
+     * @param kind {@link #AUTO_BUILD} or {@link #INCREMENTAL_BUILD}
+     * @return IProject[] related projects list
+     */
+    private IProject[] buildIncremental(final Map args, final ProjectProperties props,
+            final SyncWizard wizard, final IProgressMonitor monitor, int kind) {
         IProject result[] = null;
 
         final IProject currentProject = getProjectInternal();
@@ -262,7 +312,6 @@ implements IPreferenceChangeListener {
                 }
                 // props are in-sync now
                 wizard.setProjectProps(props);
-                int elementCount = countDeltaElement(resourceDelta);
 
                 if (propsChecker.propsChanged) {
                     Job[] jobs = Job.getJobManager().find(FileSyncBuilder.class);
@@ -292,10 +341,22 @@ implements IPreferenceChangeListener {
                         job.schedule(1000);
                     }
                 } else {
+                    BuildMetrics metrics = new BuildMetrics(currentProject.getName(),
+                            "Incremental");
+                    wizard.setMetrics(metrics);
+                    WriteBehindJob queue = isDeferred(kind) ? WriteBehindJob
+                            .getInstance(currentProject) : null;
                     try {
-                        monitor.beginTask("Incremental file sync", elementCount);
-                        final FSDeltaVisitor visitor = new FSDeltaVisitor(monitor, wizard);
+                        SubMonitor progress = SubMonitor.convert(monitor,
+                                "Incremental file sync", WORK_REMAINING);
+                        final FSDeltaVisitor visitor = new FSDeltaVisitor(progress,
+                                wizard, queue);
+                        long start = System.nanoTime();
                         resourceDelta.accept(visitor, visitorFlags);
+                        metrics.addTime(BuildMetrics.Phase.TRAVERSE, start);
+                        if (queue != null) {
+                            queue.scheduleFlush(kind == AUTO_BUILD && debounceAutoBuild);
+                        }
                     } catch (CoreException e) {
                         FileSyncPlugin.log(
                                 "Errors during sync of the resource delta:"
@@ -303,6 +364,10 @@ implements IPreferenceChangeListener {
                                         + currentProject + "'", e, IStatus.ERROR);
                     } finally {
                         wizard.cleanUp(monitor);
+                        if (queue == null) {
+                            // otherwise reported by the job which syncs the changes
+                            metrics.finish();
+                        }
                         monitor.done();
                     }
                 }
@@ -338,58 +403,40 @@ implements IPreferenceChangeListener {
         }
         // props are in-sync now
         wizard.setProjectProps(props);
+        if (clean) {
+            wizard.startCleanBuild();
+        }
+        BuildMetrics metrics = new BuildMetrics(project.getName(), clean ? "Clean"
+                : "Full");
+        wizard.setMetrics(metrics);
+        // files could be copied in parallel, folders are still created in visitor order
+        wizard.startParallelCopy(monitor);
 
-        int elementCount = countProjectElements(project);
+        boolean visited = false;
         try {
-            if (clean) {
-                monitor.beginTask("Clean project sync", elementCount);
-            } else {
-                monitor.beginTask("Full project sync", elementCount);
-            }
-            final FSResourceVisitor visitor = new FSResourceVisitor(monitor, wizard,
-                    clean);
-            project.accept(visitor, IResource.DEPTH_INFINITE, visitorFlags);
+            // project is visited only once, so the amount of work is not known
+            SubMonitor progress = SubMonitor.convert(monitor, clean ? "Clean project sync"
+                    : "Full project sync", WORK_REMAINING);
+            final FSProxyVisitor visitor = new FSProxyVisitor(progress, wizard, clean);
+            long start = System.nanoTime();
+            project.accept(visitor, visitorFlags);
+            metrics.addTime(BuildMetrics.Phase.TRAVERSE, start);
+            visited = true;
         } catch (CoreException e) {
             FileSyncPlugin.log("Error during visiting project: " + project.getName(), e,
                     IStatus.ERROR);
         } finally {
+            if (clean && (visited || monitor.isCanceled())) {
+                // also if cancelled: the user doesn't expect the next clean build to
+                // skip the deletes done so far
+                wizard.finishCleanBuild();
+            }
             wizard.cleanUp(monitor);
+            metrics.finish();
             monitor.done();
         }
     }
 
-    /**
-     * Count the number of sub-resources of a project
-     * @param project a project
-     * @return the element count
-     */
-    private int countProjectElements(IProject project) {
-        CountVisitor visitor = new CountVisitor();
-        try {
-            project.accept(visitor, IResource.DEPTH_INFINITE, visitorFlags);
-        } catch (CoreException e) {
-            FileSyncPlugin.log("Exception when counting elements of a project '"
-                    + project.getName() + "'", e, IStatus.ERROR);
-        }
-        return visitor.count;
-    }
-
-    /**
-     * Count the number of sub-resources of a delta
-     * @param delta a resource delta
-     * @return the element count
-     */
-    private int countDeltaElement(IResourceDelta delta) {
-        CountVisitor visitor = new CountVisitor();
-        try {
-            delta.accept(visitor, visitorFlags);
-        } catch (CoreException e) {
-            FileSyncPlugin.log("Exception counting elements in the delta: " + delta, e,
-                    IStatus.ERROR);
-        }
-        return visitor.count;
-    }
-
     @Override
     protected void startupOnInitialize() {
         super.startupOnInitialize();
@@ -415,6 +462,9 @@ implements IPreferenceChangeListener {
         boolean includeTeamFiles = preferences.getBoolean(
                 ProjectProperties.KEY_INCLUDE_TEAM_PRIVATE, false);
         visitorFlags = includeTeamFiles? IContainer.INCLUDE_TEAM_PRIVATE_MEMBERS : IResource.NONE;
+        debounceAutoBuild = preferences.getBoolean(
+                ProjectProperties.KEY_DEBOUNCE_AUTO_BUILD, false);
+        writeBehind = preferences.getBoolean(ProjectProperties.KEY_WRITE_BEHIND, false);
     }
 
     /**
@@ -435,8 +485,44 @@ implements IPreferenceChangeListener {
         return changed;
     }
 
-    protected void checkCancel(IProgressMonitor monitor, SyncWizard wizard) {
+    /**
+     * @param kind resource delta kind
+     * @param flags resource delta flags
+     * @return true if the destinations of the resource may be changed by the delta,
+     * false if only metadata like markers or sync info was changed
+     */
+    public static boolean isSyncNeeded(int kind, int flags) {
+        return kind != IResourceDelta.CHANGED || (flags & SYNC_FLAGS) != 0;
+    }
+
+    /**
+     * Starts the background sync of all changes collected for given project
+     * immediately, without waiting for the quiet period
+     * @see ProjectProperties#KEY_WRITE_BEHIND
+     * @see ProjectProperties#KEY_DEBOUNCE_AUTO_BUILD
+     */
+    public static void flushPendingChanges(IProject project) {
+        WriteBehindJob.flushNow(project);
+    }
+
+    /**
+     * Stops the background sync of collected changes, on plugin shutdown. Not synced
+     * changes are kept on disk and synced by the next build of the project.
+     */
+    public static void stopPendingChanges() {
+        WriteBehindJob.shutdown();
+    }
+
+    /**
+     * @param clean true if called by a clean build: cancelled by the user, it should
+     * not be continued by the next clean build
+     */
+    protected void checkCancel(IProgressMonitor monitor, SyncWizard wizard, boolean clean) {
         if (monitor.isCanceled()) {
+            if (clean) {
+                // must be done before clean up, which releases the index
+                wizard.finishCleanBuild();
+            }
             wizard.cleanUp(monitor);
             //            forgetLastBuiltState();//not always necessary
             throw new OperationCanceledException();
@@ -447,16 +533,28 @@ implements IPreferenceChangeListener {
      * @author Andrey
      */
     private class FSDeltaVisitor implements IResourceDeltaVisitor {
-        private final IProgressMonitor monitor;
+        private final SubMonitor monitor;
 
         private final SyncWizard wizard;
 
+        private final BuildMetrics metrics;
+
+        /** not null if the changes should be only collected */
+        private final WriteBehindJob queue;
+
+        /** last folder whose destinations were renamed, children are only synced */
+        private IPath renamedFolder;
+
         /**
          * @param monitor
+         * @param queue if not null, changes are only collected by given job
          */
-        public FSDeltaVisitor(IProgressMonitor monitor, SyncWizard wizard) {
+        public FSDeltaVisitor(SubMonitor monitor, SyncWizard wizard,
+                WriteBehindJob queue) {
             this.monitor = monitor;
             this.wizard = wizard;
+            this.queue = queue;
+            metrics = wizard.getMetrics();
         }
 
         @Override
@@ -464,77 +562,192 @@ implements IPreferenceChangeListener {
             if (delta == null) {
                 return false;
             }
-            checkCancel(monitor, wizard);
+            checkCancel(monitor, wizard, false);
+            monitor.setWorkRemaining(WORK_REMAINING);
             monitor.worked(1);
-            if (delta.getResource().getType() == IResource.PROJECT) {
+            metrics.increment(BuildMetrics.Counter.VISITED);
+            int type = delta.getResource().getType();
+            if (type == IResource.PROJECT) {
                 return true;
             }
+            boolean syncNeeded = isSyncNeeded(delta.getKind(), delta.getFlags());
+            if (!syncNeeded && type == IResource.FILE) {
+                // only metadata changed, no need to match or to look at destination
+                metrics.increment(BuildMetrics.Counter.FILTERED);
+                return false;
+            }
+            long start = System.nanoTime();
+            boolean pruned = type == IResource.FOLDER
+                    && wizard.isSubtreeExcluded(delta.getProjectRelativePath());
             boolean shouldVisit = wizard.checkResource(delta);
             if (!shouldVisit) {
+                if (pruned) {
+                    metrics.addTime(BuildMetrics.Phase.MATCH, start);
+                    metrics.increment(BuildMetrics.Counter.PRUNED);
+                    return false;
+                }
                 // return true, if there children with mappings to visit
-                return wizard.hasMappedChildren(delta);
+                boolean hasMappedChildren = wizard.hasMappedChildren(delta);
+                metrics.addTime(BuildMetrics.Phase.MATCH, start);
+                return hasMappedChildren;
             }
-            String resStr = delta.getResource().toString();
-            monitor.subTask("sync: " + resStr);
-            boolean ok = wizard.sync(delta, monitor);
-            if (!ok) {
-                FileSyncPlugin.log("Errors during sync of the resource delta: '" + resStr
-                        + "' in project '" + delta.getResource().getProject().getName()
-                        + "'", null, IStatus.WARNING);
+            // whole removed subtree is deleted at once, children need no visit
+            boolean removedSubtree = type == IResource.FOLDER
+                    && delta.getKind() == IResourceDelta.REMOVED
+                    && wizard.isSubtreeOwned(delta.getProjectRelativePath());
+            metrics.addTime(BuildMetrics.Phase.MATCH, start);
+            metrics.increment(BuildMetrics.Counter.MATCHED);
+            if (!syncNeeded) {
+                // folder with changed children or changed metadata only
+                if (pruned) {
+                    metrics.increment(BuildMetrics.Counter.PRUNED);
+                }
+                return !pruned;
             }
-            // always visit children
-            return true;
+            IPath movedPath = getMovedPath(delta);
+            if (movedPath != null && renamedFolder != null
+                    && renamedFolder.isPrefixOf(delta.getProjectRelativePath())) {
+                // destination is renamed with the parent, but could be changed too
+                movedPath = null;
+            }
+            if (queue != null) {
+                queue.add(delta.getResource(), delta.getKind());
+            } else if (movedPath != null && isMove(delta, movedPath)) {
+                if (delta.getKind() == IResourceDelta.REMOVED) {
+                    // the delta of the new location renames or deletes the
+                    // destinations
+                    return false;
+                }
+                if (wizard.move(delta.getResource(), movedPath, monitor)
+                        && type == IResource.FOLDER) {
+                    // children are renamed together with the folder
+                    renamedFolder = delta.getProjectRelativePath();
+                }
+            } else {
+                String resStr = delta.getResource().toString();
+                monitor.subTask("sync: " + resStr);
+                boolean ok = wizard.sync(delta, monitor);
+                if (!ok) {
+                    wizard.syncFailed(delta.getResource());
+                }
+            }
+            if (pruned) {
+                // nothing to sync below
+                metrics.increment(BuildMetrics.Counter.PRUNED);
+                return false;
+            }
+            return !removedSubtree;
+        }
+
+        /**
+         * @return project relative path of the other location of a resource moved
+         * inside the project, or null
+         */
+        private IPath getMovedPath(IResourceDelta delta) {
+            IPath path;
+            int flags = delta.getFlags();
+            if (delta.getKind() == IResourceDelta.ADDED
+                    && (flags & IResourceDelta.MOVED_FROM) != 0) {
+                path = delta.getMovedFromPath();
+            } else if (delta.getKind() == IResourceDelta.REMOVED
+                    && (flags & IResourceDelta.MOVED_TO) != 0) {
+                path = delta.getMovedToPath();
+            } else {
+                return null;
+            }
+            String projectName = delta.getResource().getProject().getName();
+            if (path == null || path.segmentCount() < 2
+                    || !projectName.equals(path.segment(0))) {
+                // moves between projects are handled by builders of both projects
+                return null;
+            }
+            return path.removeFirstSegments(1);
+        }
+
+        private boolean isMove(IResourceDelta delta, IPath movedPath) {
+            boolean isFolder = delta.getResource().getType() == IResource.FOLDER;
+            if (delta.getKind() == IResourceDelta.ADDED) {
+                return wizard.canMove(movedPath, delta.getProjectRelativePath(), isFolder);
+            }
+            return wizard.canMove(delta.getProjectRelativePath(), movedPath, isFolder);
         }
     }
 
     /**
+     * Visits the project only once, resource handles are created only for mapped
+     * resources and subtrees without mappings are not entered at all.
      * @author Andrey
      */
-    private class FSResourceVisitor implements IResourceVisitor {
-        private final IProgressMonitor monitor;
+    private class FSProxyVisitor implements IResourceProxyVisitor {
+        private final SubMonitor monitor;
 
         private final SyncWizard wizard;
 
         private final boolean clean;
 
+        private final BuildMetrics metrics;
+
         /**
          * @param monitor
          * @param clean
          */
-        public FSResourceVisitor(IProgressMonitor monitor, SyncWizard wizard,
-                boolean clean) {
+        public FSProxyVisitor(SubMonitor monitor, SyncWizard wizard, boolean clean) {
             this.monitor = monitor;
             this.wizard = wizard;
             this.clean = clean;
+            metrics = wizard.getMetrics();
         }
 
         @Override
-        public boolean visit(IResource resource) {
+        public boolean visit(IResourceProxy proxy) {
+            checkCancel(monitor, wizard, clean);
+            monitor.setWorkRemaining(WORK_REMAINING);
             monitor.worked(1);
-            checkCancel(monitor, wizard);
-            if (resource.getType() == IResource.PROJECT) {
+            metrics.increment(BuildMetrics.Counter.VISITED);
+            int type = proxy.getType();
+            if (type == IResource.PROJECT) {
                 return true;
             }
-
-            boolean shouldVisit = wizard.checkResource(resource);
+            if (proxy.isPhantom()) {
+                return false;
+            }
+            // first segment is the project
+            IPath path = proxy.requestFullPath().removeFirstSegments(1);
+            boolean isFolder = type == IResource.FOLDER;
+            long start = System.nanoTime();
+            boolean pruned = isFolder && wizard.isSubtreeExcluded(path);
+            boolean shouldVisit = wizard.matchFilter(path, isFolder);
             if (clean && !shouldVisit) {
                 // this resource could be on the mapping path but filtered out -
                 // on "clean" build it should be deleted
-                shouldVisit = wizard.mappingExists(resource);
+                shouldVisit = wizard.mappingExists(path, isFolder);
             }
             if (!shouldVisit) {
+                if (pruned) {
+                    metrics.addTime(BuildMetrics.Phase.MATCH, start);
+                    metrics.increment(BuildMetrics.Counter.PRUNED);
+                    return false;
+                }
                 // return true, if there children with mappings to visit
-                return wizard.hasMappedChildren(resource);
+                boolean hasMappedChildren = wizard.hasMappedChildren(path, isFolder);
+                metrics.addTime(BuildMetrics.Phase.MATCH, start);
+                return hasMappedChildren;
             }
+            metrics.addTime(BuildMetrics.Phase.MATCH, start);
+            metrics.increment(BuildMetrics.Counter.MATCHED);
+            IResource resource = proxy.requestResource();
             String resStr = resource.getProjectRelativePath().toString();
             monitor.subTask("check for " + resStr);
             boolean ok = wizard.sync(resource, monitor, clean);
             if (!ok) {
-                FileSyncPlugin.log("Errors during sync of the resource '" + resStr
-                        + "' in project '" + resource.getProject().getName() + "'", null,
-                        IStatus.WARNING);
+                wizard.syncFailed(resource);
+            }
+            if (pruned) {
+                // nothing to copy below, and on "clean" build the destination
+                // folder was already deleted with all children
+                metrics.increment(BuildMetrics.Counter.PRUNED);
+                return false;
             }
-            // always visit children
             return true;
         }
     }
@@ -682,25 +895,4 @@ implements IPreferenceChangeListener {
             myJob.schedule();
         }
     }
-
-    /**
-     * Visitor which only counts visited resources
-     * @author Andrey
-     */
-    protected final static class CountVisitor implements IResourceDeltaVisitor,
-    IResourceVisitor {
-        public int count = 0;
-
-        @Override
-        public boolean visit(IResourceDelta delta) {
-            count++;
-            return true;
-        }
-
-        @Override
-        public boolean visit(IResource resource) {
-            count++;
-            return true;
-        }
-    }
 }
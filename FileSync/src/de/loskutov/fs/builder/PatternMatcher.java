@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Precompiled inclusion/exclusion patterns of one mapping. Gives exactly the same
+ * results as {@link SyncWizard#isExcluded(char[], char[][], char[][], boolean)}, but
+ * the folder variants of the patterns are computed only once, the literal prefix and
+ * suffix of each pattern are checked before the full path match, and the path is
+ * written into a reusable per-thread buffer instead of creating new char arrays.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ * @author Andrey
+ */
+public final class PatternMatcher {
+
+    private static final char SEPARATOR = '/';
+
+    private static final ThreadLocal<char[][]> BUFFER = new ThreadLocal<char[][]>() {
+        @Override
+        protected char[][] initialValue() {
+            return new char[][] { new char[256] };
+        }
+    };
+
+    /** null if there are no inclusion patterns */
+    private final Pattern[] inclusions;
+
+    /** inclusion patterns used for folders, null if there are no inclusion patterns */
+    private final Pattern[] folderInclusions;
+
+    /** null if there are no exclusion patterns */
+    private final Pattern[] exclusions;
+
+    /**
+     * @param inclusionPatterns full path inclusion patterns, may be null
+     * @param exclusionPatterns full path exclusion patterns, may be null
+     */
+    public PatternMatcher(char[][] inclusionPatterns, char[][] exclusionPatterns) {
+        if (inclusionPatterns != null) {
+            inclusions = new Pattern[inclusionPatterns.length];
+            folderInclusions = new Pattern[inclusionPatterns.length];
+            for (int i = 0; i < inclusionPatterns.length; i++) {
+                char[] pattern = inclusionPatterns[i];
+                inclusions[i] = new Pattern(pattern);
+                folderInclusions[i] = new Pattern(getFolderPattern(pattern));
+            }
+        } else {
+            inclusions = null;
+            folderInclusions = null;
+        }
+        if (exclusionPatterns != null) {
+            exclusions = new Pattern[exclusionPatterns.length];
+            for (int i = 0; i < exclusionPatterns.length; i++) {
+                exclusions[i] = new Pattern(exclusionPatterns[i]);
+            }
+        } else {
+            exclusions = null;
+        }
+    }
+
+    /**
+     * Same as in {@link SyncWizard#isExcluded(char[], char[][], char[][], boolean)}:
+     * trailing slash adds '**' for free (see
+     * http://ant.apache.org/manual/dirtasks.html), otherwise the last segment is
+     * ignored for folders if it is not '**'
+     */
+    private static char[] getFolderPattern(char[] pattern) {
+        int lastSlash = CharOperation.lastIndexOf(SEPARATOR, pattern);
+        if (lastSlash != -1 && lastSlash != pattern.length - 1) {
+            int star = CharOperation.indexOf('*', pattern, lastSlash);
+            if ((star == -1 || star >= pattern.length - 1 || pattern[star + 1] != '*')) {
+                return CharOperation.subarray(pattern, 0, lastSlash);
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * @param path project relative path
+     * @param isFolder true if given path denotes a folder
+     * @return true if the path is not included or is excluded
+     */
+    public boolean isExcluded(IPath path, boolean isFolder) {
+        if (inclusions == null && exclusions == null) {
+            return false;
+        }
+        char[][] holder = BUFFER.get();
+        int length;
+        if (path.getDevice() == null && !path.isUNC()) {
+            length = write(path, holder);
+        } else {
+            String string = path.toString();
+            length = string.length();
+            ensureCapacity(holder, length + 2);
+            string.getChars(0, length, holder[0], 0);
+        }
+        return isExcluded(holder[0], length, isFolder);
+    }
+
+    /**
+     * @param path buffer containing the path, must have at least two free characters
+     * after the path end if the path denotes a folder
+     * @param length the length of the path
+     * @param isFolder true if given path denotes a folder
+     * @return true if the path is not included or is excluded
+     */
+    public boolean isExcluded(char[] path, int length, boolean isFolder) {
+        if (inclusions != null) {
+            Pattern[] patterns = isFolder ? folderInclusions : inclusions;
+            boolean included = false;
+            for (int i = 0; i < patterns.length; i++) {
+                if (patterns[i].matches(path, length)) {
+                    included = true;
+                    break;
+                }
+            }
+            if (!included) {
+                return true;
+            }
+        }
+        if (exclusions == null) {
+            return false;
+        }
+        if (isFolder) {
+            // same as concatenation with "/*"
+            if (length > 0) {
+                path[length++] = SEPARATOR;
+            }
+            path[length++] = '*';
+        }
+        for (int i = 0; i < exclusions.length; i++) {
+            if (exclusions[i].matches(path, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param folder project relative folder path
+     * @return true if every path below given folder is excluded by this matcher. False
+     * means only that some paths below <b>may</b> be not excluded.
+     */
+    public boolean isSubtreeExcluded(IPath folder) {
+        if (inclusions == null && exclusions == null) {
+            return false;
+        }
+        char[][] holder = BUFFER.get();
+        if (folder.getDevice() != null || folder.isUNC()) {
+            return false;
+        }
+        int length = write(folder, holder);
+        return isSubtreeExcluded(holder[0], length);
+    }
+
+    /**
+     * @param path folder path
+     * @param length path length
+     * @return true if every path below given folder is excluded by this matcher. False
+     * means only that some paths below <b>may</b> be not excluded.
+     */
+    public boolean isSubtreeExcluded(char[] path, int length) {
+        if (length > 0 && path[length - 1] == SEPARATOR) {
+            length--;
+        }
+        if (length == 0 || (length == 1 && path[0] == SEPARATOR)) {
+            return false;
+        }
+        for (int i = 1; i < length; i++) {
+            if (path[i] == SEPARATOR && path[i - 1] == SEPARATOR) {
+                return false;
+            }
+        }
+        if (exclusions != null) {
+            for (int i = 0; i < exclusions.length; i++) {
+                if (exclusions[i].matchesAllBelow(path, length)) {
+                    return true;
+                }
+            }
+        }
+        if (inclusions == null) {
+            return false;
+        }
+        for (int i = 0; i < inclusions.length; i++) {
+            // children could be files or folders
+            if (inclusions[i].mayMatchBelow(path, length)
+                    || folderInclusions[i].mayMatchBelow(path, length)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the same characters as path.toString() would return, for paths without
+     * device
+     * @return the path length
+     */
+    private static int write(IPath path, char[][] holder) {
+        int segmentCount = path.segmentCount();
+        boolean absolute = path.isAbsolute();
+        boolean trailing = segmentCount > 0 && path.hasTrailingSeparator();
+        int length = absolute ? 1 : 0;
+        for (int i = 0; i < segmentCount; i++) {
+            length += path.segment(i).length() + 1;
+        }
+        // two more characters for folder suffix
+        ensureCapacity(holder, length + 3);
+        char[] buffer = holder[0];
+        int pos = 0;
+        if (absolute) {
+            buffer[pos++] = SEPARATOR;
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            if (i > 0) {
+                buffer[pos++] = SEPARATOR;
+            }
+            String segment = path.segment(i);
+            segment.getChars(0, segment.length(), buffer, pos);
+            pos += segment.length();
+        }
+        if (trailing) {
+            buffer[pos++] = SEPARATOR;
+        }
+        return pos;
+    }
+
+    private static void ensureCapacity(char[][] holder, int length) {
+        if (holder[0].length < length) {
+            holder[0] = new char[Math.max(length, holder[0].length * 2)];
+        }
+    }
+
+    /**
+     * One precompiled path pattern
+     */
+    private static final class Pattern {
+        private final char[] chars;
+
+        /** length of the literal prefix which each matching path must start with */
+        private final int prefixLength;
+
+        /** start of the literal suffix which each matching path must end with */
+        private final int suffixStart;
+
+        /**
+         * for patterns like "base/**" or "base/", the "base" part: each path below the
+         * path matching the base matches the entire pattern. Null for other patterns.
+         */
+        private final char[] subtreeBase;
+
+        /**
+         * path segments of the pattern, null if the pattern contains empty segments.
+         * The "**" segments are kept as is.
+         */
+        private final char[][] segments;
+
+        /** true if pattern can match any number of segments */
+        private final boolean unbounded;
+
+        Pattern(char[] chars) {
+            this.chars = chars;
+            int end = chars.length;
+            boolean freeTrailingDoubleStar = end > 0 && chars[end - 1] == SEPARATOR;
+            segments = split(chars);
+            boolean hasDoubleStar = false;
+            if (segments != null) {
+                for (int i = 0; i < segments.length; i++) {
+                    hasDoubleStar |= isDoubleStar(segments[i]);
+                }
+            }
+            unbounded = freeTrailingDoubleStar || hasDoubleStar;
+            int baseEnd = -1;
+            if (freeTrailingDoubleStar) {
+                baseEnd = end - 1;
+            } else if (end > 3 && isDoubleStarSegment(chars, end - 2)) {
+                baseEnd = end - 3;
+            }
+            subtreeBase = segments == null || baseEnd <= 0 ? null : CharOperation
+                    .subarray(chars, 0, baseEnd);
+            int firstWildcard = -1;
+            int lastWildcard = -1;
+            for (int i = 0; i < end; i++) {
+                if (chars[i] == '*' || chars[i] == '?') {
+                    if (firstWildcard < 0) {
+                        firstWildcard = i;
+                    }
+                    lastWildcard = i;
+                } else if (i > 0 && chars[i] == SEPARATOR && chars[i - 1] == SEPARATOR) {
+                    // empty segments are matched in a special way, no fast checks
+                    prefixLength = 0;
+                    suffixStart = end;
+                    return;
+                }
+            }
+            if (firstWildcard < 0) {
+                // pattern foo/ is equivalent to foo/**
+                prefixLength = freeTrailingDoubleStar ? end - 1 : end;
+                suffixStart = freeTrailingDoubleStar ? end : 0;
+                return;
+            }
+            int prefix = firstWildcard;
+            if (isDoubleStarSegment(chars, firstWildcard) && prefix > 0) {
+                // "**" could match zero segments, together with the separator
+                prefix--;
+            }
+            prefixLength = prefix;
+            if (freeTrailingDoubleStar) {
+                suffixStart = end;
+            } else {
+                int suffix = lastWildcard + 1;
+                if (isDoubleStarSegment(chars, lastWildcard - 1) && suffix < end) {
+                    suffix++;
+                }
+                suffixStart = suffix;
+            }
+        }
+
+        /**
+         * @return true if the "**" at given position is the entire path segment
+         */
+        private static boolean isDoubleStarSegment(char[] chars, int start) {
+            int end = chars.length;
+            return start >= 0 && start + 1 < end && chars[start] == '*'
+                    && chars[start + 1] == '*'
+                    && (start == 0 || chars[start - 1] == SEPARATOR)
+                    && (start + 2 == end || chars[start + 2] == SEPARATOR);
+        }
+
+        /**
+         * @return segments of given path pattern, or null if there are empty segments
+         */
+        private static char[][] split(char[] chars) {
+            int end = chars.length;
+            int start = end > 0 && chars[0] == SEPARATOR ? 1 : 0;
+            if (end > start && chars[end - 1] == SEPARATOR) {
+                end--;
+            }
+            if (end <= start || chars[end - 1] == SEPARATOR) {
+                return null;
+            }
+            int count = 1;
+            for (int i = start; i < end; i++) {
+                if (chars[i] == SEPARATOR) {
+                    if (i == start || chars[i - 1] == SEPARATOR) {
+                        return null;
+                    }
+                    count++;
+                }
+            }
+            char[][] result = new char[count][];
+            int segmentStart = start;
+            int idx = 0;
+            for (int i = start; i <= end; i++) {
+                if (i == end || chars[i] == SEPARATOR) {
+                    result[idx++] = CharOperation.subarray(chars, segmentStart, i);
+                    segmentStart = i + 1;
+                }
+            }
+            return result;
+        }
+
+        private static boolean isDoubleStar(char[] segment) {
+            return segment.length == 2 && segment[0] == '*' && segment[1] == '*';
+        }
+
+        /**
+         * @param path folder path without empty segments and without trailing separator
+         * @return true if each path below given folder matches this pattern
+         */
+        boolean matchesAllBelow(char[] path, int length) {
+            if (subtreeBase == null) {
+                return false;
+            }
+            // base could match the folder itself or any one of its parents
+            for (int i = 1; i <= length; i++) {
+                if ((i == length || path[i] == SEPARATOR)
+                        && CharOperation.pathMatch(subtreeBase, path, i, true, SEPARATOR)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param path folder path without empty segments and without trailing separator
+         * @return false only if no path below given folder could match this pattern
+         */
+        boolean mayMatchBelow(char[] path, int length) {
+            if (segments == null) {
+                return true;
+            }
+            boolean absolute = chars[0] == SEPARATOR;
+            if (absolute != (path[0] == SEPARATOR)) {
+                // both must start with a separator or none
+                return false;
+            }
+            int segment = 0;
+            int start = absolute ? 1 : 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && path[end] != SEPARATOR) {
+                    end++;
+                }
+                if (segment == segments.length) {
+                    // pattern is exhausted, only "foo/" could match more segments
+                    return unbounded;
+                }
+                char[] patternSegment = segments[segment];
+                if (isDoubleStar(patternSegment)) {
+                    return true;
+                }
+                if (!CharOperation.match(patternSegment, 0, patternSegment.length, path,
+                        start, end, true)) {
+                    return false;
+                }
+                segment++;
+                start = end + 1;
+            }
+            // paths below have at least one segment more
+            return unbounded || segment < segments.length;
+        }
+
+        boolean matches(char[] path, int length) {
+            if (length < prefixLength) {
+                return false;
+            }
+            for (int i = 0; i < prefixLength; i++) {
+                if (path[i] != chars[i]) {
+                    return false;
+                }
+            }
+            int suffixLength = chars.length - suffixStart;
+            if (length > 0 && path[length - 1] == SEPARATOR) {
+                // trailing separator of the path is ignored by path match
+                suffixLength = 0;
+            }
+            if (length < suffixLength) {
+                return false;
+            }
+            int patternOffset = chars.length - suffixLength;
+            int pathOffset = length - suffixLength;
+            for (int i = 0; i < suffixLength; i++) {
+                if (path[pathOffset + i] != chars[patternOffset + i]) {
+                    return false;
+                }
+            }
+            return CharOperation.pathMatch(chars, path, length, true, SEPARATOR);
+        }
+    }
+}
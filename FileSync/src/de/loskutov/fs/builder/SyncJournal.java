@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IStatus;
+
+import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.builder.DestinationIndex.FileState;
+
+/**
+ * Append-only log of the {@link DestinationIndex} changes made since the index was
+ * written to the disk the last time. If the build is interrupted (Eclipse killed or
+ * crashed), the index is restored from the last saved state and the journal, so that
+ * the next build does not need to check again the files which were already copied.
+ * <p>
+ * Records are buffered and written in small batches, so that the last few records
+ * could be lost on a crash: this only means that few more files are checked again.
+ * An incomplete last record is ignored on replay.
+ * <p>
+ * The journal belongs to one generation of the saved index: after the index is saved
+ * (compacted), the journal is deleted and a new one is started with the next
+ * generation, so that the old records are never applied twice.
+ * @author Andrey
+ */
+class SyncJournal {
+
+    private static final int VERSION = 1;
+
+    private static final byte SECTION = 'S';
+
+    private static final byte UPDATE = 'U';
+
+    private static final byte REMOVE = 'R';
+
+    private static final byte CLEAN_START = 'C';
+
+    private static final byte CLEANED = 'D';
+
+    private static final byte CLEAN_END = 'E';
+
+    /** records are written to the disk in batches of this size */
+    private static final int FLUSH_COUNT = 64;
+
+    /**
+     * Receives the journal records on replay
+     */
+    interface Listener {
+        void update(String signature, String path, FileState state);
+
+        void remove(String signature, String path);
+
+        void cleanStarted();
+
+        void cleaned(String path);
+
+        void cleanFinished();
+    }
+
+    private final File file;
+
+    private final long generation;
+
+    /** key is the section signature, value is the id used in this journal */
+    private final Map<String, Integer> sectionIds;
+
+    private DataOutputStream out;
+
+    private int recordCount;
+
+    private int unflushed;
+
+    private boolean failed;
+
+    /**
+     * @param file journal file, will be overridden
+     * @param generation generation of the saved index this journal belongs to
+     */
+    SyncJournal(File file, long generation) {
+        this.file = file;
+        this.generation = generation;
+        sectionIds = new HashMap<String, Integer>();
+    }
+
+    /**
+     * @return number of records written to this journal
+     */
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    void update(String signature, String path, FileState state) {
+        DataOutputStream stream = beginRecord(UPDATE, signature);
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.writeUTF(path);
+            stream.writeLong(state.size);
+            stream.writeLong(state.lastModified);
+            stream.writeLong(state.hash);
+            stream.writeLong(state.destinationStamp);
+            endRecord();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void remove(String signature, String path) {
+        DataOutputStream stream = beginRecord(REMOVE, signature);
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.writeUTF(path);
+            endRecord();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void cleanStarted() {
+        if (beginRecord(CLEAN_START, null) != null) {
+            // make sure that old records can't be applied after the index was cleared
+            endRecord();
+            flush();
+        }
+    }
+
+    void cleaned(String path) {
+        DataOutputStream stream = beginRecord(CLEANED, null);
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.writeUTF(path);
+            endRecord();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void cleanFinished() {
+        if (beginRecord(CLEAN_END, null) != null) {
+            endRecord();
+            flush();
+        }
+    }
+
+    /**
+     * Starts new record, writes the section definition first if needed
+     * @return stream to write record data, or null if the journal is not available
+     */
+    private DataOutputStream beginRecord(byte type, String signature) {
+        DataOutputStream stream = getStream();
+        if (stream == null) {
+            return null;
+        }
+        try {
+            int id = -1;
+            if (signature != null) {
+                Integer knownId = sectionIds.get(signature);
+                if (knownId == null) {
+                    id = sectionIds.size();
+                    stream.writeByte(SECTION);
+                    stream.writeInt(id);
+                    stream.writeUTF(signature);
+                    sectionIds.put(signature, Integer.valueOf(id));
+                } else {
+                    id = knownId.intValue();
+                }
+            }
+            stream.writeByte(type);
+            if (signature != null) {
+                stream.writeInt(id);
+            }
+            return stream;
+        } catch (IOException e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    private void endRecord() {
+        recordCount++;
+        if (++unflushed >= FLUSH_COUNT) {
+            flush();
+        }
+    }
+
+    private DataOutputStream getStream() {
+        if (out != null || failed) {
+            return out;
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+        return out;
+    }
+
+    /**
+     * Writes all buffered records to the disk
+     */
+    void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+            unflushed = 0;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Closes and deletes the journal file, should be called after the index was saved
+     */
+    void delete() {
+        close();
+        if (file.exists() && !file.delete()) {
+            FileSyncPlugin.log("Could not delete sync journal '" + file + "'", null,
+                    IStatus.WARNING);
+        }
+    }
+
+    /**
+     * Closes the journal file, keeping all records written so far
+     */
+    void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            FileSyncPlugin.log("Could not write sync journal '" + file + "'", e,
+                    IStatus.WARNING);
+        }
+        out = null;
+    }
+
+    private void fail(IOException e) {
+        // index works without journal too, only resume after crash is not possible
+        failed = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e1) {
+                // ignore
+            }
+            out = null;
+        }
+        file.delete();
+        FileSyncPlugin.log("Could not write sync journal '" + file + "'", e,
+                IStatus.WARNING);
+    }
+
+    /**
+     * Applies all complete records of the journal file to given listener
+     * @param file journal file, may not exist
+     * @param generation generation of the loaded index, journals of other generations
+     * are ignored
+     * @return number of applied records
+     */
+    static int replay(File file, long generation, Listener listener) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        int count = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION || in.readLong() != generation) {
+                return 0;
+            }
+            Map<Integer, String> signatures = new HashMap<Integer, String>();
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                switch (type) {
+                case SECTION:
+                    int id = in.readInt();
+                    signatures.put(Integer.valueOf(id), in.readUTF());
+                    continue;
+                case UPDATE:
+                    String signature = signatures.get(Integer.valueOf(in.readInt()));
+                    String path = in.readUTF();
+                    FileState state = new FileState(in.readLong(), in.readLong(), in
+                            .readLong(), in.readLong());
+                    if (signature != null) {
+                        listener.update(signature, path, state);
+                    }
+                    break;
+                case REMOVE:
+                    signature = signatures.get(Integer.valueOf(in.readInt()));
+                    path = in.readUTF();
+                    if (signature != null) {
+                        listener.remove(signature, path);
+                    }
+                    break;
+                case CLEAN_START:
+                    listener.cleanStarted();
+                    break;
+                case CLEANED:
+                    listener.cleaned(in.readUTF());
+                    break;
+                case CLEAN_END:
+                    listener.cleanFinished();
+                    break;
+                default:
+                    throw new IOException("Unexpected record type: " + type);
+                }
+                count++;
+            }
+        } catch (EOFException e) {
+            // last record was not completely written, ignore it
+        } catch (IOException e) {
+            FileSyncPlugin.log("Could not read sync journal '" + file + "'", e,
+                    IStatus.WARNING);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return count;
+    }
+}
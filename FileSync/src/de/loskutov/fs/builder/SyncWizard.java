@@ -9,13 +9,20 @@
 package de.loskutov.fs.builder;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IPathVariableManager;
+import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IWorkspace;
@@ -30,11 +37,17 @@ import org.eclipse.core.runtime.content.IContentType;
 import org.eclipse.core.runtime.preferences.IEclipsePreferences;
 
 import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.command.AtomicFileOutputStream;
+import de.loskutov.fs.command.ContentHash;
 import de.loskutov.fs.command.CopyDelegate;
 import de.loskutov.fs.command.CopyDelegate1;
 import de.loskutov.fs.command.FS;
+import de.loskutov.fs.command.TreeDeleter;
 import de.loskutov.fs.command.FileMapping;
+import de.loskutov.fs.command.MappedCopyDelegate;
+import de.loskutov.fs.command.MappingTrie;
 import de.loskutov.fs.command.PathVariableHelper;
+import de.loskutov.fs.command.StreamingCopyDelegate;
 import de.loskutov.fs.properties.ProjectProperties;
 
 /**
@@ -43,8 +56,8 @@ import de.loskutov.fs.properties.ProjectProperties;
  * @author Andrey
  */
 public class SyncWizard {
-    protected static final IContentType TEXT_TYPE = Platform.getContentTypeManager()
-            .getContentType("org.eclipse.core.runtime.text"); //$NON-NLS-1$
+    /** lazy initialized, so that the static matching code runs without platform */
+    private static IContentType textType;
 
 
     /**
@@ -52,11 +65,22 @@ public class SyncWizard {
      */
     private FileMapping[] mappings;
 
+    /**
+     * Lookup structure for the mappings above
+     */
+    private MappingTrie mappingTrie;
+
     /**
      * Default destination root
      */
     private IPath rootPath;
 
+    /**
+     * Mappings whose destination is the same as, inside or around the destination of
+     * another mapping
+     */
+    private Set<FileMapping> sharedDestinations;
+
     private ProjectProperties projectProps;
 
     /**
@@ -71,43 +95,175 @@ public class SyncWizard {
      */
     private boolean useCurrentDateForDestinationFiles;
 
-    private boolean needRefreshAffectedProjects;
+    /**
+     * To compare files by content hash instead of modification time and size
+     */
+    private boolean compareContent;
 
-    private CopyDelegate copyDelegate;
+    /**
+     * To write destination files to a temporary file first and to replace the
+     * destination only after the copy is complete
+     */
+    private boolean atomicWrite;
+
+    /**
+     * Destination files and folders written or deleted during current build, which
+     * should be refreshed in the workspace. Key is the destination file, value is true
+     * for folders (which should be refreshed with all children).
+     */
+    private final Map<File, Boolean> changedDestinations;
+
+    /**
+     * Copy delegates are stateful, so each thread performing the copy operations uses
+     * own one
+     */
+    private ThreadLocal<CopyDelegate> copyDelegates;
+
+    /**
+     * Not null only during full or clean builds, if parallel copy is enabled
+     */
+    private CopyExecutor copyExecutor;
+
+    /**
+     * State of already copied files, to skip unchanged files without looking at the
+     * destination
+     */
+    private DestinationIndex destinationIndex;
+
+    /**
+     * Destination folders created during current build: the state of the children of
+     * this folders can't be taken from the destination index
+     */
+    private final Set<File> createdDirs;
+
+    /**
+     * Destination folders already checked for temporary files left by interrupted
+     * atomic writes during current build
+     */
+    private final Set<File> checkedDirs;
+
+    /** collects timing and counters of the current build */
+    private BuildMetrics metrics;
+
+    /** collects failures of the current build, logged at the build end */
+    private final FailureLog failureLog;
 
     public SyncWizard() {
         super();
+        copyDelegates = new ThreadLocal<CopyDelegate>();
+        createdDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        checkedDirs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        changedDestinations = new ConcurrentHashMap<File, Boolean>();
+        metrics = new BuildMetrics("", "Unknown");
+        failureLog = new FailureLog();
+    }
+
+    /**
+     * @param metrics collects timing and counters of the current build, not null
+     */
+    public void setMetrics(BuildMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public BuildMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reports a failed sync of given resource, all failures are logged together at
+     * the build end
+     */
+    public void syncFailed(IResource resource) {
+        failureLog.add("Errors during sync of the resource", null, resource
+                .getProjectRelativePath(), resource.getProject().getName());
     }
 
-    private void createCopyDelegate() {
+    private static CopyDelegate createCopyDelegate() {
         String delegate = System.getProperty("fs.copydelegate", null);
         if("CopyDelegate".equals(delegate)) {
-            copyDelegate = new CopyDelegate();
-        } else {
-            // this is always more performant solution. The first one is for tests only
-            copyDelegate = new CopyDelegate1();
+            return new CopyDelegate();
+        }
+        if("StreamingCopyDelegate".equals(delegate)) {
+            return new StreamingCopyDelegate();
         }
+        if("MappedCopyDelegate".equals(delegate)) {
+            return new MappedCopyDelegate();
+        }
+        // this is always more performant solution. The first one is for tests only
+        return new CopyDelegate1();
     }
 
-    private void initCopyDelegate(IFile file, FileMapping fm) {
+    private CopyDelegate initCopyDelegate(String encoding, FileMapping fm) {
+        CopyDelegate copyDelegate = copyDelegates.get();
         if(copyDelegate == null){
-            createCopyDelegate();
+            copyDelegate = createCopyDelegate();
+            copyDelegates.set(copyDelegate);
         }
+        copyDelegate.setEncoding(encoding);
+        copyDelegate.setAtomicWrite(atomicWrite);
+        // compiled variables are shared by all builds, see SubstitutionTable
+        copyDelegate.setSubstitutionTable(fm.getSubstitutionTable());
+        return copyDelegate;
+    }
+
+    private static String getCharset(IFile file) {
         try {
-            copyDelegate.setEncoding(file.getCharset());
+            return file.getCharset();
         } catch (CoreException e) {
-            copyDelegate.setEncoding("ISO-8859-1");
             FileSyncPlugin.log("Failed to get charset for file '"
                     + file.getName() + "', ISO-8859-1 used", e,
                     IStatus.WARNING);
+            return "ISO-8859-1";
         }
-        Properties propertiesMap = fm.getVariables();
-        copyDelegate.setPropertiesMap(propertiesMap);
+    }
+
+    /**
+     * Starts the pool of copy threads, which will be used for all following file copy
+     * operations until {@link #cleanUp(IProgressMonitor)} is called. Should be only
+     * used for full or clean builds. Has no effect if parallel copy is disabled via
+     * "fs.copythreads" system property.
+     * @param monitor used to check for cancellation by the copy threads
+     */
+    public void startParallelCopy(IProgressMonitor monitor) {
+        if (copyExecutor != null) {
+            return;
+        }
+        int threads = CopyExecutor.getThreadCount();
+        if (threads > 1) {
+            copyExecutor = new CopyExecutor(threads, monitor);
+        }
+    }
+
+    /**
+     * Waits until all pending copy operations started via
+     * {@link #startParallelCopy(IProgressMonitor)} are done.
+     * @return true if all pending copy operations were successful
+     */
+    private boolean finishParallelCopy(IProgressMonitor monitor) {
+        if (copyExecutor == null) {
+            return true;
+        }
+        int pending = copyExecutor.getPendingCount();
+        if (pending > 0) {
+            monitor.subTask("waiting for " + pending + " pending copy operations");
+        }
+        long start = System.nanoTime();
+        boolean ok = copyExecutor.shutdown();
+        metrics.addTime(BuildMetrics.Phase.WAIT, start);
+        if (!ok) {
+            FileSyncPlugin.log(copyExecutor.getFailedCount() + " of "
+                    + (copyExecutor.getFailedCount() + copyExecutor.getCopiedCount())
+                    + " files failed to copy for project '"
+                    + projectProps.getProject().getName() + "'", null, IStatus.WARNING);
+        }
+        copyExecutor = null;
+        return ok;
     }
 
     public void setProjectProps(ProjectProperties props) throws IllegalArgumentException {
         projectProps = props;
-        mappings = props.getMappings();
+        mappingTrie = props.getMappingTrie();
+        mappings = mappingTrie.getAllMappings();
         if (mappings == null || mappings.length == 0) {
             throw new IllegalArgumentException("FileSync mapping is missing."
                     + " Don't panic, simply call your project owner.");
@@ -128,6 +284,76 @@ public class SyncWizard {
                 ProjectProperties.KEY_CLEAN_ON_CLEAN_BUILD, false));
         useCurrentDateForDestinationFiles = preferences.getBoolean(
                 ProjectProperties.KEY_USE_CURRENT_DATE, false);
+        compareContent = preferences.getBoolean(ProjectProperties.KEY_COMPARE_CONTENT,
+                false);
+        atomicWrite = preferences.getBoolean(ProjectProperties.KEY_ATOMIC_WRITE, false);
+        destinationIndex = DestinationIndex.getInstance(props.getProject());
+        destinationIndex.init(mappings, useCurrentDateForDestinationFiles, rootPath);
+        sharedDestinations = new HashSet<FileMapping>();
+        for (int i = 0; i < mappings.length; i++) {
+            IPath dest1 = getDestinationRoot(mappings[i]);
+            for (int j = i + 1; j < mappings.length && dest1 != null; j++) {
+                IPath dest2 = getDestinationRoot(mappings[j]);
+                if (dest2 != null && (dest1.isPrefixOf(dest2) || dest2.isPrefixOf(dest1))) {
+                    sharedDestinations.add(mappings[i]);
+                    sharedDestinations.add(mappings[j]);
+                }
+            }
+        }
+    }
+
+    private IPath getDestinationRoot(FileMapping fm) {
+        IPath destinationPath = fm.getDestinationPath();
+        return destinationPath != null ? destinationPath : rootPath;
+    }
+
+    /**
+     * @param path project relative path of a folder
+     * @return true if the destination folders of given folder can contain only copies
+     * of its own children: its mappings have no inclusion or exclusion patterns, and
+     * no other mapping starts below it or writes to the same destination. Such a
+     * removed folder may be deleted at once, with all children. With patterns, the
+     * destination may contain files the mapping never wrote (e.g. excluded ones).
+     */
+    protected boolean isSubtreeOwned(IPath path) {
+        if (mappingTrie.hasMappingsBelow(path)) {
+            return false;
+        }
+        FileMapping[] candidates = mappingTrie.getMappings(path);
+        if (candidates.length == 0) {
+            return false;
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            FileMapping fm = candidates[i];
+            if (sharedDestinations.contains(fm) || fm.getInclusionPatterns().length > 0
+                    || fm.getExclusionPatterns().length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the state of all previously copied files, so that all of them will be
+     * compared with the destination again. Should be called on clean builds. If the
+     * last clean build was interrupted, the state is kept and the new clean build
+     * continues the old one.
+     */
+    public void startCleanBuild() {
+        if (destinationIndex != null && destinationIndex.startCleanBuild()) {
+            FileSyncPlugin.log("Continuing interrupted clean file sync for project '"
+                    + projectProps.getProject().getName() + "'", null, IStatus.INFO);
+        }
+    }
+
+    /**
+     * Should be called if the clean build was completed or cancelled by the user. Only
+     * clean builds interrupted otherwise (errors, crash) are continued by the next one.
+     */
+    public void finishCleanBuild() {
+        if (destinationIndex != null) {
+            destinationIndex.finishCleanBuild();
+        }
     }
 
     private boolean usesDefaultOutputFolder() {
@@ -172,13 +398,7 @@ public class SyncWizard {
     }
 
     public boolean hasMappedChildren(IPath path, boolean isFolder) {
-        for (int i = 0; i < mappings.length; i++) {
-            FileMapping fm = mappings[i];
-            if (path.isPrefixOf(fm.getSourcePath())) {
-                return true;
-            }
-        }
-        return false;
+        return mappingTrie.hasMappedChildren(path);
     }
 
     public boolean hasMappedChildren(IResourceDelta delta) {
@@ -193,28 +413,33 @@ public class SyncWizard {
      * @return true only if this operation was successfull for all mapped files
      */
     public boolean sync(IResourceDelta delta, IProgressMonitor monitor) {
-        IResource res = delta.getResource();
+        return sync(delta.getResource(), delta.getKind(), monitor);
+    }
 
+    /**
+     * Performs all required operations to sync given resource change with target
+     * directory
+     * @param res changed resource, may not exist anymore
+     * @param kind one of {@link IResourceDelta} ADDED, REMOVED, CHANGED or REPLACED
+     * @param monitor
+     * @return true only if this operation was successfull for all mapped files
+     */
+    public boolean sync(IResource res, int kind, IProgressMonitor monitor) {
         boolean result = false;
-        switch (delta.getKind()) {
+        switch (kind) {
         case IResourceDelta.ADDED:
             result = copy(res, monitor);
             break;
         case IResourceDelta.REMOVED:
             /*
-             * TODO Currently we trying to delete the delta's resource
-             * regardless if this resource should be deleted or only the
-             * child element.
-             * Therefore we create warnings while trying to successive
-             * delete directories, because we are going from root to the
-             * child entries and as long as childs are exists, deletion
-             * of parent will fail. I think there should be some kind of
-             * flags in the delta, if the current resource itself should be
-             * deleted or only one of the children. In the second case we
-             * shouldn't try to delete current resource!!!
+             * Removed folder owning its destination subtree is deleted at once,
+             * its children deltas should be skipped then (see isSubtreeOwned()).
+             * Otherwise only the empty destination folder is deleted here, and
+             * the children are deleted by their own deltas.
              */
-            result = true;
-            result = delete(res, false, monitor);
+            boolean subtree = res.getType() == IResource.FOLDER
+                    && isSubtreeOwned(res.getProjectRelativePath());
+            result = delete(res, subtree, monitor);
             break;
         case IResourceDelta.REPLACED:
             // fall througth
@@ -224,9 +449,6 @@ public class SyncWizard {
         default:
             break;
         }
-        if (result) {
-            needRefreshAffectedProjects = true;
-        }
         return result;
     }
 
@@ -240,81 +462,56 @@ public class SyncWizard {
     public boolean sync(IResource res, IProgressMonitor monitor, boolean clean) {
         boolean ok = true;
         if (clean && deleteDestinationOnCleanBuild) {
-            ok = delete(res, clean, monitor);
-            if (!ok) {
-                return ok;
+            String path = res.getProjectRelativePath().toString();
+            // already done if the interrupted clean build is continued
+            if (destinationIndex == null || !destinationIndex.isCleaned(path)) {
+                ok = delete(res, clean, monitor);
+                if (!ok) {
+                    return ok;
+                }
+                if (destinationIndex != null) {
+                    destinationIndex.setCleaned(path);
+                }
             }
-            needRefreshAffectedProjects = true;
         }
         if (ok) {
             if (!clean || matchFilter(res)) {
                 ok = copy(res, monitor);
             }
-            if (ok) {
-                needRefreshAffectedProjects = true;
-            }
         }
         return ok;
     }
 
     public void cleanUp(IProgressMonitor monitor) {
-        if (needRefreshAffectedProjects) {
-            List/*<IContainer>*/containers = getAffectedResources();
-            for (int i = 0; i < containers.size(); i++) {
-                IContainer container = (IContainer) containers.get(i);
-                try {
-                    // this will start all builder for the destination project too...
-                    // so that we could have "refresh forever"
-                    container.refreshLocal(IResource.DEPTH_INFINITE, monitor);
-                } catch (CoreException e) {
-                    FileSyncPlugin.log("Failed to refresh destination folder '"
-                            + container.getName() + "' after file sync", e,
-                            IStatus.WARNING);
-                }
-            }
+        finishParallelCopy(monitor);
+        if (projectProps != null) {
+            failureLog.flush(projectProps.getProject().getName());
         }
-        copyDelegate = null;
-        needRefreshAffectedProjects = false;
+        // refresh will start all builders for the destination projects too...
+        // so that we could have "refresh forever": refresh only what was changed
+        DestinationRefreshJob.refresh(changedDestinations, metrics);
+        changedDestinations.clear();
+        copyDelegates = new ThreadLocal<CopyDelegate>();
+        if (destinationIndex != null) {
+            long start = System.nanoTime();
+            destinationIndex.save();
+            metrics.addTime(BuildMetrics.Phase.INDEX, start);
+            destinationIndex = null;
+        }
+        createdDirs.clear();
+        checkedDirs.clear();
         projectProps = null;
         mappings = null;
-    }
-
-    /**
-     * @return IContainer list which *should* be affected by the file synchronization as
-     * destination targets. It is NOT the list of *really* affected resources (if build was
-     * cancelled or exception etc).
-     */
-    private List getAffectedResources() {
-        ArrayList list = new ArrayList();
-        for (int i = 0; i < mappings.length; i++) {
-            IContainer[] containers = mappings[i].getDestinationContainers();
-            if (containers.length > 0) {
-                for (int j = 0; j < containers.length; j++) {
-                    if (!list.contains(containers[j])) {
-                        list.add(containers[j]);
-                    }
-                }
-            }
-        }
-        if (usesDefaultOutputFolder() && rootPath != null) {
-            IContainer[] containers = ResourcesPlugin.getWorkspace().getRoot()
-                    .findContainersForLocation(rootPath);
-            if (containers.length > 0) {
-                for (int i = 0; i < containers.length; i++) {
-                    if (!list.contains(containers[i])) {
-                        list.add(containers[i]);
-                    }
-                }
-            }
-        }
-        return list;
+        mappingTrie = null;
     }
 
     /**
      * Copy file(s) mapped to given resource according to existing project file mappings
      * @param sourceRoot
      * @param monitor
-     * @return true only if this operation was successfull for all mapped files
+     * @return true only if this operation was successfull for all mapped files. Files
+     * copied by the copy threads are not finished yet: their failures are reported
+     * like failed syncs of the resource, before the failure log is flushed.
      */
     protected boolean copy(IResource sourceRoot, IProgressMonitor monitor) {
         IPath relativePath = sourceRoot.getProjectRelativePath();
@@ -338,93 +535,230 @@ public class SyncWizard {
         }
 
         boolean commonState = true;
-        File sourceFile = getSourceFile(sourceRoot);
+        final File sourceFile = getSourceFile(sourceRoot);
         // only required if we need to substitute variables
         Boolean hasTextType = null;
+        String encoding = null;
         for (int i = 0; i < mappingList.size() && !monitor.isCanceled(); i++) {
-            FileMapping fm = (FileMapping) mappingList.get(i);
-            File destinationFile = fm.getCurrentDestFile();
+            final FileMapping fm = (FileMapping) mappingList.get(i);
+            final File destinationFile = fm.getCurrentDestFile();
             if(destinationFile == null){
                 continue;
             }
-            boolean ok;
-
-            /*
-             * single file
-             */
-            if (!destinationFile.canWrite() || destinationFile.isDirectory()) {
-                ok = FS.delete(destinationFile, false);
-                if (!ok) {
-                    commonState = false;
-                    FileSyncPlugin.log("Failed to clean old external resource '"
-                            + destinationFile + "' mapped in project '"
-                            + sourceRoot.getProject().getName() + "'", null,
-                            IStatus.WARNING);
-                    continue;
-                }
-            }
-            ok = FS.create(destinationFile, true);
-            if (!ok) {
-                commonState = false;
-                FileSyncPlugin.log("Failed to create new external resource '"
-                        + destinationFile + "', mapped in project '"
-                        + sourceRoot.getProject().getName() + "'", null, IStatus.WARNING);
-                continue;
-            }
-
+            boolean substitute = false;
             if (fm.getVariablesPath() != null && fm.getVariables() != null) {
                 if(hasTextType == null){
                     hasTextType = Boolean.valueOf(hasTextContentType((IFile) sourceRoot));
+                    if (hasTextType.booleanValue()) {
+                        encoding = getCharset((IFile) sourceRoot);
+                    }
                 }
-                if (hasTextType.booleanValue()) {
-                    initCopyDelegate((IFile) sourceRoot, fm);
-                    ok = copyDelegate.copy(sourceFile, destinationFile);
-                } else {
-                    FileSyncPlugin.log("Variable substitution not used for '"
-                            + destinationFile
-                            + "' (not a text file), mapped in project '"
-                            + sourceRoot.getProject().getName() + "'", null,
-                            IStatus.WARNING);
-                    ok = FS.copy(sourceFile, destinationFile,
-                            useCurrentDateForDestinationFiles);
+                substitute = hasTextType.booleanValue();
+                if (!substitute) {
+                    failureLog.add("Variable substitution not used (not a text file)"
+                            + " for", fm, destinationFile, sourceRoot.getProject()
+                            .getName());
                 }
-            } else {
-                ok = FS.copy(sourceFile, destinationFile,
-                        useCurrentDateForDestinationFiles);
             }
 
+            final String projectName = sourceRoot.getProject().getName();
+            final String fileEncoding = substitute ? encoding : null;
+            final String sourcePath = relativePath.toString();
+            final long modificationStamp = sourceRoot.getModificationStamp();
+            if (copyExecutor != null) {
+                copyExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        boolean ok = copyFile(sourceFile, sourcePath, modificationStamp,
+                                destinationFile, fm, fileEncoding, projectName);
+                        if (!ok) {
+                            // the caller didn't wait for the result to report it
+                            failureLog.add("Errors during sync of the resource", null,
+                                    relativePath, projectName);
+                        }
+                        return Boolean.valueOf(ok);
+                    }
+                });
+                continue;
+            }
+            boolean ok = copyFile(sourceFile, sourcePath, modificationStamp,
+                    destinationFile, fm, fileEncoding, projectName);
             if (!ok) {
                 commonState = false;
-                FileSyncPlugin.log("Failed to copy to external resource '"
-                        + destinationFile + "', mapped in project '"
-                        + sourceRoot.getProject().getName() + "'", null, IStatus.WARNING);
             }
         }
         if (monitor.isCanceled()) {
-            FileSyncPlugin.log("Cancelled by user, failed to copy *all* resources, "
-                    + "mapped in project '" + sourceRoot.getProject().getName() + "'",
-                    null, IStatus.WARNING);
+            failureLog.add("Cancelled by user, failed to copy", null, sourceRoot
+                    .getProjectRelativePath(), sourceRoot.getProject().getName());
         }
         return commonState;
     }
 
+    /**
+     * Copy single file to the single destination. This method could be called
+     * concurrently from different copy threads, so it shouldn't access any
+     * workspace resources.
+     * @param sourcePath project relative source path
+     * @param modificationStamp modification stamp of the source resource
+     * @param encoding null if variables should not be substituted, otherwise the
+     * encoding of the source file
+     * @return true only if this operation was successfull
+     */
+    private boolean copyFile(File sourceFile, String sourcePath, long modificationStamp,
+            File destinationFile, FileMapping fm, String encoding, String projectName) {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            ok = copyFileInternal(sourceFile, sourcePath, modificationStamp,
+                    destinationFile, fm, encoding, projectName);
+        } finally {
+            if (!ok) {
+                metrics.increment(BuildMetrics.Counter.FAILED);
+            }
+            metrics.addTime(BuildMetrics.Phase.COPY, start);
+        }
+        return ok;
+    }
+
+    private boolean copyFileInternal(File sourceFile, String sourcePath,
+            long modificationStamp, File destinationFile, FileMapping fm,
+            String encoding, String projectName) {
+        long size = sourceFile.length();
+        long lastModified = sourceFile.lastModified();
+        if (destinationIndex != null
+                && !createdDirs.contains(destinationFile.getParentFile())
+                && destinationIndex.isUpToDate(fm, sourcePath, size, lastModified)) {
+            metrics.increment(BuildMetrics.Counter.UP_TO_DATE);
+            return true;
+        }
+        boolean ok;
+        if (!destinationFile.canWrite() || destinationFile.isDirectory()) {
+            ok = FS.delete(destinationFile, false);
+            if (!ok) {
+                failureLog.add("Failed to clean old external resource", fm,
+                        destinationFile, projectName);
+                return false;
+            }
+        }
+        if (atomicWrite) {
+            // the file itself is created on commit, empty file is never visible
+            File dir = destinationFile.getParentFile();
+            ok = FS.create(dir, false);
+            deleteStaleTempFiles(dir);
+        } else {
+            ok = FS.create(destinationFile, true);
+        }
+        if (!ok) {
+            failureLog.add("Failed to create new external resource", fm,
+                    destinationFile, projectName);
+            return false;
+        }
+
+        long sourceHash = ContentHash.UNKNOWN;
+        boolean written = true;
+        if (encoding != null) {
+            CopyDelegate copyDelegate = initCopyDelegate(encoding, fm);
+            ok = copyDelegate.copy(sourceFile, destinationFile);
+            if (ok) {
+                metrics.increment(BuildMetrics.Counter.SUBSTITUTED);
+                metrics.add(BuildMetrics.Counter.BYTES_WRITTEN, destinationFile.length());
+            }
+        } else if (compareContent) {
+            // content is same if substitution is not used, so we can compare hashes
+            sourceHash = getSourceHash(sourceFile, sourcePath, modificationStamp);
+            if (FS.isSameContent(sourceFile, sourceHash, destinationFile)) {
+                ok = true;
+                written = false;
+                metrics.increment(BuildMetrics.Counter.IDENTICAL);
+            } else {
+                // content differs, even if size and date are the same
+                ok = FS.copy(sourceFile, destinationFile,
+                        useCurrentDateForDestinationFiles, atomicWrite, true);
+            }
+        } else {
+            ok = FS.copy(sourceFile, destinationFile,
+                    useCurrentDateForDestinationFiles, atomicWrite);
+        }
+        if (ok && written && encoding == null) {
+            metrics.increment(BuildMetrics.Counter.COPIED);
+            metrics.add(BuildMetrics.Counter.BYTES_WRITTEN, size);
+        }
+        if (written) {
+            changedDestinations.put(destinationFile, Boolean.FALSE);
+        }
+
+        if (!ok) {
+            failureLog.add("Failed to copy to external resource", fm, destinationFile,
+                    projectName);
+        } else if (destinationIndex != null) {
+            long destinationStamp = useCurrentDateForDestinationFiles ? System
+                    .currentTimeMillis() : lastModified;
+            destinationIndex.update(fm, sourcePath, size, lastModified, sourceHash,
+                    destinationStamp);
+        }
+        return ok;
+    }
+
+    /**
+     * @return the content hash of the source file, computed only if the file was
+     * changed since the last computation, or {@link ContentHash#UNKNOWN} if the file
+     * couldn't be read
+     */
+    private long getSourceHash(File sourceFile, String sourcePath, long modificationStamp) {
+        long hash = ContentHash.UNKNOWN;
+        if (destinationIndex != null) {
+            hash = destinationIndex.getSourceHash(sourcePath, modificationStamp);
+        }
+        if (hash != ContentHash.UNKNOWN) {
+            return hash;
+        }
+        try {
+            hash = ContentHash.hash(sourceFile);
+        } catch (IOException e) {
+            FileSyncPlugin.log("Could not read file '" + sourceFile + "'", e,
+                    IStatus.WARNING);
+            return ContentHash.UNKNOWN;
+        }
+        if (destinationIndex != null && modificationStamp != IResource.NULL_STAMP) {
+            destinationIndex.putSourceHash(sourcePath, modificationStamp, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Deletes temporary files left in given destination folder by atomic writes
+     * which were interrupted during one of previous builds. Each folder is checked
+     * only once per build.
+     */
+    private void deleteStaleTempFiles(File dir) {
+        if (atomicWrite && checkedDirs.add(dir)) {
+            AtomicFileOutputStream.deleteStaleFiles(dir);
+        }
+    }
+
     private boolean createDirs(IResource sourceRoot, List/*<File>*/destinationFiles,
             IProgressMonitor monitor) {
         boolean commonState = true;
         for (int i = 0; i < destinationFiles.size() && !monitor.isCanceled(); i++) {
             File destinationFile = (File) destinationFiles.get(i);
+            if (!destinationFile.isDirectory()) {
+                if (destinationIndex != null) {
+                    createdDirs.add(destinationFile);
+                }
+                changedDestinations.put(destinationFile, Boolean.TRUE);
+            } else {
+                deleteStaleTempFiles(destinationFile);
+            }
             boolean ok = FS.create(destinationFile, false);
             if (!ok) {
                 commonState = false;
-                FileSyncPlugin.log("Failed to create external folder '" + destinationFile
-                        + "', mapped in project '" + sourceRoot.getProject().getName()
-                        + "'", null, IStatus.WARNING);
+                failureLog.add("Failed to create external folder", null,
+                        destinationFile, sourceRoot.getProject().getName());
             }
         }
         if (monitor.isCanceled()) {
-            FileSyncPlugin.log("Cancelled by user, failed to copy *all* resources, "
-                    + "mapped in project '" + sourceRoot.getProject().getName() + "'",
-                    null, IStatus.WARNING);
+            failureLog.add("Cancelled by user, failed to copy", null, sourceRoot
+                    .getProjectRelativePath(), sourceRoot.getProject().getName());
         }
         return commonState;
     }
@@ -444,11 +778,18 @@ public class SyncWizard {
             return true;
         }
 
+        if (destinationIndex != null) {
+            for (int i = 0; i < mappingList.size(); i++) {
+                destinationIndex.remove((FileMapping) mappingList.get(i), relativePath,
+                        sourceRoot.getType() == IResource.FOLDER);
+            }
+        }
         List destinationFiles = getDestinationFiles(mappingList, sourceRoot, relativePath);
         if (destinationFiles == null || destinationFiles.isEmpty()) {
             return true;
         }
         boolean commonState = true;
+        boolean parentEmpty = false;
         File rootFile = rootPath == null ? null : rootPath.toFile();
         for (int i = 0; i < destinationFiles.size() && !monitor.isCanceled(); i++) {
             File destinationFile = (File) destinationFiles.get(i);
@@ -456,33 +797,204 @@ public class SyncWizard {
                 // never delete root destination path !!!
                 continue;
             }
-            boolean result = FS.delete(destinationFile, clean);
-            if (!result && destinationFile.isFile()) {
+            boolean existed = destinationFile.exists();
+            if (existed) {
+                changedDestinations.put(destinationFile, Boolean
+                        .valueOf(destinationFile.isDirectory()));
+            }
+            long start = System.nanoTime();
+            boolean result;
+            if (clean) {
+                result = deleteTree(destinationFile, sourceRoot);
+            } else {
+                result = FS.delete(destinationFile, false);
+                if (result && existed) {
+                    metrics.increment(BuildMetrics.Counter.DELETED);
+                }
+                if (!result && destinationFile.isFile()) {
+                    metrics.increment(BuildMetrics.Counter.FAILED);
+                    failureLog.add("Failed to delete the external resource", null,
+                            destinationFile, sourceRoot.getProject().getName());
+                } else {
+                    // not empty directory is no failure: children have their own deltas
+                    result = true;
+                }
+            }
+            metrics.addTime(BuildMetrics.Phase.DELETE, start);
+            if (!result) {
                 commonState = false;
-                FileSyncPlugin.log("Failed to delete the external resource '"
-                        + destinationFile + "', mapped in project '"
-                        + sourceRoot.getProject().getName() + "'", null, IStatus.WARNING);
+            } else if (existed && !parentEmpty) {
+                parentEmpty = isEmptyDirectory(destinationFile.getParentFile(), rootFile);
             }
         }
-        IContainer parent = sourceRoot.getParent();
-        if (commonState && parent != null) {
-            // try to delete parent directory, if it is empty and is in the mapping
-            IPath path = parent.getProjectRelativePath();
-            if (path.toString().length() != 0 && matchFilter(path, true)) {
-                // start recursion, ignore result value cause this was not explicit requested
-                //boolean parentDeleted = delete(parent, clean, monitor);
-                delete(parent, clean, monitor);
-                // does we need log for this ??? I think not...
-            }
+        if (commonState && parentEmpty) {
+            deleteParent(sourceRoot, monitor);
         }
         if (monitor.isCanceled()) {
-            FileSyncPlugin.log("Cancelled by user, failed to delete *all* resources, "
-                    + "mapped in project '" + sourceRoot.getProject().getName() + "'",
-                    null, IStatus.WARNING);
+            failureLog.add("Cancelled by user, failed to delete", null, sourceRoot
+                    .getProjectRelativePath(), sourceRoot.getProject().getName());
         }
         return commonState;
     }
 
+    /**
+     * Deletes the destination of the parent of given resource bottom-up, should be
+     * called only if it is now empty
+     */
+    private void deleteParent(IResource sourceRoot, IProgressMonitor monitor) {
+        IContainer parent = sourceRoot.getParent();
+        if (parent == null) {
+            return;
+        }
+        IPath path = parent.getProjectRelativePath();
+        if (path.toString().length() != 0 && matchFilter(path, true)) {
+            // ignore result value cause this was not explicit requested
+            delete(parent, false, monitor);
+        }
+    }
+
+    /**
+     * @param oldPath project relative path of a moved resource before the move
+     * @param newPath project relative path of the resource after the move
+     * @param isFolder
+     * @return true if the destinations of the moved resource can be renamed instead
+     * of being deleted and copied again: both paths are mapped by the same mappings.
+     * Folders must also own their destination subtree (see
+     * {@link #isSubtreeOwned(IPath)}), so their mappings have no patterns which could
+     * match the children differently after the move.
+     */
+    public boolean canMove(IPath oldPath, IPath newPath, boolean isFolder) {
+        List oldMappings = getMappings(oldPath, isFolder, false);
+        if (oldMappings == null || !oldMappings.equals(getMappings(newPath, isFolder, false))) {
+            return false;
+        }
+        if (!isFolder) {
+            return true;
+        }
+        return isSubtreeOwned(oldPath) && isSubtreeOwned(newPath);
+    }
+
+    /**
+     * Mirrors the move of given resource by renaming its destinations. If a rename
+     * is not possible, the old destinations are deleted and the resource is copied.
+     * Should be called only if {@link #canMove(IPath, IPath, boolean)} is true.
+     * <p>
+     * The resource could be changed in the same delta, so a renamed file is copied
+     * as usual afterwards (it is found up to date if not changed). The children of a
+     * renamed folder must be synced by the caller the same way.
+     * @param resource moved resource at the new location
+     * @param oldPath project relative path of the resource before the move
+     * @param monitor
+     * @return true if all destinations were renamed, false if the resource was
+     * copied: the children of a folder must be copied by the caller then
+     */
+    public boolean move(IResource resource, IPath oldPath, IProgressMonitor monitor) {
+        IProject project = resource.getProject();
+        IResource oldResource = resource.getType() == IResource.FOLDER ? (IResource) project
+                .getFolder(oldPath) : project.getFile(oldPath);
+        long start = System.nanoTime();
+        boolean renamed = rename(oldResource, resource, monitor);
+        metrics.addTime(BuildMetrics.Phase.COPY, start);
+        if (renamed) {
+            if (resource.getType() == IResource.FILE && !copy(resource, monitor)) {
+                syncFailed(resource);
+            }
+            return true;
+        }
+        // copy and delete, the destinations renamed already are up to date
+        boolean ok = sync(oldResource, IResourceDelta.REMOVED, monitor);
+        ok &= sync(resource, IResourceDelta.ADDED, monitor);
+        if (!ok) {
+            syncFailed(resource);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if all destinations of the old resource were renamed
+     */
+    private boolean rename(IResource oldResource, IResource resource,
+            IProgressMonitor monitor) {
+        IPath oldPath = oldResource.getProjectRelativePath();
+        IPath newPath = resource.getProjectRelativePath();
+        boolean isFolder = resource.getType() == IResource.FOLDER;
+        List mappingList = getMappings(newPath, isFolder, false);
+        if (mappingList == null) {
+            return false;
+        }
+        List oldFiles = getDestinationFiles(mappingList, oldResource, oldPath);
+        List newFiles = getDestinationFiles(mappingList, resource, newPath);
+        if (oldFiles == null || newFiles == null || oldFiles.size() != newFiles.size()) {
+            return false;
+        }
+        File rootFile = rootPath == null ? null : rootPath.toFile();
+        if (oldFiles.contains(rootFile) || newFiles.contains(rootFile)) {
+            // never move root destination path !!!
+            return false;
+        }
+        if (destinationIndex != null) {
+            for (int i = 0; i < mappingList.size(); i++) {
+                FileMapping fm = (FileMapping) mappingList.get(i);
+                destinationIndex.remove(fm, oldPath, isFolder);
+                destinationIndex.remove(fm, newPath, isFolder);
+            }
+        }
+        boolean renamed = true;
+        boolean parentEmpty = false;
+        for (int i = 0; i < oldFiles.size() && !monitor.isCanceled(); i++) {
+            File oldFile = (File) oldFiles.get(i);
+            File newFile = (File) newFiles.get(i);
+            if (!FS.move(oldFile, newFile)) {
+                renamed = false;
+                continue;
+            }
+            metrics.increment(BuildMetrics.Counter.MOVED);
+            Boolean folder = Boolean.valueOf(isFolder);
+            changedDestinations.put(oldFile, folder);
+            changedDestinations.put(newFile, folder);
+            if (!parentEmpty) {
+                parentEmpty = isEmptyDirectory(oldFile.getParentFile(), rootFile);
+            }
+        }
+        if (parentEmpty) {
+            deleteParent(oldResource, monitor);
+        }
+        return renamed && !monitor.isCanceled();
+    }
+
+    /**
+     * Deletes given destination file or directory with all children, all failures
+     * are reported
+     * @return true if the whole tree was deleted
+     */
+    private boolean deleteTree(File destinationFile, IResource sourceRoot) {
+        TreeDeleter.Result result = TreeDeleter.delete(destinationFile);
+        metrics.add(BuildMetrics.Counter.DELETED, result.getDeletedCount());
+        if (result.isOk()) {
+            return true;
+        }
+        metrics.add(BuildMetrics.Counter.FAILED, result.getFailedCount());
+        String projectName = sourceRoot.getProject().getName();
+        List<File> failed = result.getFailed();
+        for (int i = 0; i < failed.size(); i++) {
+            failureLog.add("Failed to delete the external resource", null, failed.get(i),
+                    projectName);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if given directory exists, is empty and is not the root
+     * destination directory
+     */
+    private static boolean isEmptyDirectory(File dir, File rootFile) {
+        if (dir == null || dir.equals(rootFile)) {
+            return false;
+        }
+        String[] children = dir.list();
+        return children != null && children.length == 0;
+    }
+
     /**
      * @param source
      * @return File object, corresponding to given resource. This file could be
@@ -542,21 +1054,39 @@ public class SyncWizard {
         //             */
         //            return false;
         //        }
-        for (int i = 0; i < mappings.length; i++) {
-            FileMapping fm = mappings[i];
-            if (fm.getSourcePath().isPrefixOf(path)) {
-                char[][] excl = fm.fullExclusionPatternChars();
-                char[][] incl = fm.fullInclusionPatternChars();
-                boolean ex = isExcluded(path, incl, excl, isFolder);
-                if (!ex) {
-                    //                    System.out.println("match: " + path + " to " + fm);
-                    return true;
-                }
+        FileMapping[] candidates = mappingTrie.getMappings(path);
+        for (int i = 0; i < candidates.length; i++) {
+            FileMapping fm = candidates[i];
+            boolean ex = fm.getMatcher().isExcluded(path, isFolder);
+            if (!ex) {
+                //                    System.out.println("match: " + path + " to " + fm);
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * Check if nothing below given folder could match the included and not excluded
+     * entries patterns of any one of known project files mappings, so that the
+     * folder children need not to be visited at all.
+     * @param path project relative folder path
+     * @return true if all children of given folder (at any depth) are filtered out
+     */
+    protected boolean isSubtreeExcluded(IPath path) {
+        if (mappingTrie.hasMappingsBelow(path)) {
+            // other mappings may start below
+            return false;
+        }
+        FileMapping[] candidates = mappingTrie.getMappings(path);
+        for (int i = 0; i < candidates.length; i++) {
+            if (!candidates[i].getMatcher().isSubtreeExcluded(path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /*
      * Copy from org.eclipse.jdt.internal.core.util.Util
      *
@@ -645,13 +1175,7 @@ public class SyncWizard {
      * @return true
      */
     protected boolean mappingExists(IPath path, boolean isFolder) {
-        for (int i = 0; i < mappings.length; i++) {
-            FileMapping fm = mappings[i];
-            if (fm.getSourcePath().isPrefixOf(path)) {
-                return true;
-            }
-        }
-        return false;
+        return mappingTrie.hasMapping(path);
     }
 
     /**
@@ -711,25 +1235,22 @@ public class SyncWizard {
     protected List/*<FileMapping>*/getMappings(IPath path, boolean isFolder,
             boolean includeExcludes) {
         ArrayList mappingList = null;
-        for (int i = 0; i < mappings.length; i++) {
-            FileMapping fm = mappings[i];
-            if (fm.getSourcePath().isPrefixOf(path)) {
-                if (includeExcludes) {
-                    if (mappingList == null) {
-                        mappingList = new ArrayList();
-                    }
-                    mappingList.add(fm);
-                    continue;
+        FileMapping[] candidates = mappingTrie.getMappings(path);
+        for (int i = 0; i < candidates.length; i++) {
+            FileMapping fm = candidates[i];
+            if (includeExcludes) {
+                if (mappingList == null) {
+                    mappingList = new ArrayList();
                 }
-                char[][] excl = fm.fullExclusionPatternChars();
-                char[][] incl = fm.fullInclusionPatternChars();
-                boolean ex = isExcluded(path, incl, excl, isFolder);
-                if (!ex) {
-                    if (mappingList == null) {
-                        mappingList = new ArrayList();
-                    }
-                    mappingList.add(fm);
+                mappingList.add(fm);
+                continue;
+            }
+            boolean ex = fm.getMatcher().isExcluded(path, isFolder);
+            if (!ex) {
+                if (mappingList == null) {
+                    mappingList = new ArrayList();
                 }
+                mappingList.add(fm);
             }
         }
         return mappingList;
@@ -815,6 +1336,14 @@ public class SyncWizard {
         return projectProps;
     }
 
+    protected static synchronized IContentType getTextType() {
+        if (textType == null) {
+            textType = Platform.getContentTypeManager().getContentType(
+                    "org.eclipse.core.runtime.text"); //$NON-NLS-1$
+        }
+        return textType;
+    }
+
     /**
      * @param file must be not null
      * @return true if the file has "text" content description.
@@ -829,7 +1358,7 @@ public class SyncWizard {
             if (contentType == null) {
                 return false;
             }
-            return contentType.isKindOf(TEXT_TYPE);
+            return contentType.isKindOf(getTextType());
             //
         } catch (CoreException e) {
             FileSyncPlugin.log(
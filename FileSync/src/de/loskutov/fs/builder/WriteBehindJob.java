@@ -0,0 +1,598 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
+
+import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.command.AtomicFileOutputStream;
+import de.loskutov.fs.properties.ProjectProperties;
+
+/**
+ * Queue of changes reported by incremental builds of one project, which are
+ * synchronized in background, outside of the build.
+ * <p>
+ * In "write behind" mode the builder only collects the changes and the job writes
+ * them immediately, but with its own scheduling rule: slow destinations (network
+ * shares, USB sticks) do not block other builders and the workspace.
+ * <p>
+ * In "debounce" mode the changes of automatic builds are written together, after no
+ * new changes were reported for a while. Saving many files at once or running code
+ * generators causes many small builds, and each of them would otherwise copy few
+ * files and refresh the destinations on its own.
+ * <p>
+ * Changes of the same resource are merged, only the final operation (copy or
+ * delete) is performed. The number of pending changes is shown by a marker on the
+ * project.
+ * <p>
+ * The build which reported the changes has already consumed its resource delta, so
+ * the queue is also written to the project working location. If Eclipse exits or
+ * crashes before the changes are synced, they are restored and synced by the first
+ * build of the project in the next session.
+ * @author Andrey
+ */
+public class WriteBehindJob extends Job {
+
+    /** debounce quiet period in milliseconds, after which the changes are synced */
+    private static final long DELAY = Long.getLong("fs.debounce", 1000).longValue();
+
+    /** changes are synced at latest after this time, even if new ones are reported */
+    private static final long MAX_DELAY = 10 * DELAY;
+
+    /** key is the project */
+    private static final Map<IProject, WriteBehindJob> JOBS = new HashMap<IProject, WriteBehindJob>();
+
+    /** marker showing the number of pending changes on the project */
+    public static final String MARKER_TYPE = FileSyncPlugin.PLUGIN_ID + ".pendingSync";
+
+    /** name of the file with not yet synced changes, in the project working location */
+    private static final String QUEUE_FILE = "pending.queue";
+
+    private static final int VERSION = 1;
+
+    /**
+     * Rule of the job: jobs of the same project are never run together, but do not
+     * conflict with any workspace operation
+     */
+    private static final class WriteRule implements ISchedulingRule {
+        WriteRule() {
+            super();
+        }
+
+        @Override
+        public boolean contains(ISchedulingRule rule) {
+            return rule == this;
+        }
+
+        @Override
+        public boolean isConflicting(ISchedulingRule rule) {
+            return rule == this;
+        }
+    }
+
+    /**
+     * Merged change of one resource
+     */
+    public static final class Change {
+        /** resource type, see {@link IResource#getType()} */
+        final int type;
+
+        /** true to delete the destination, false to copy the resource */
+        final boolean remove;
+
+        /** type of the resource removed before, if it differs from current one */
+        final int removedType;
+
+        Change(int type, boolean remove, int removedType) {
+            this.type = type;
+            this.remove = remove;
+            this.removedType = removedType;
+        }
+
+        /**
+         * @return resource type, see {@link IResource#getType()}
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * @return true to delete the destination, false to copy the resource
+         */
+        public boolean isRemove() {
+            return remove;
+        }
+
+        /**
+         * @return type of the resource which must be deleted before the copy, because
+         * it was replaced by a resource of another type, or 0
+         */
+        public int getRemovedType() {
+            return removedType;
+        }
+    }
+
+    /** deletes first, deepest paths first, then copies, parent paths first */
+    private static final Comparator<Entry<IPath, Change>> ORDER = new Comparator<Entry<IPath, Change>>() {
+        @Override
+        public int compare(Entry<IPath, Change> e1, Entry<IPath, Change> e2) {
+            boolean remove1 = e1.getValue().remove;
+            boolean remove2 = e2.getValue().remove;
+            if (remove1 != remove2) {
+                return remove1 ? -1 : 1;
+            }
+            int depth1 = e1.getKey().segmentCount();
+            int depth2 = e2.getKey().segmentCount();
+            return remove1 ? depth2 - depth1 : depth1 - depth2;
+        }
+    };
+
+    private final IProject project;
+
+    /** key is the project relative path, ordered as reported */
+    private final Map<IPath, Change> pending;
+
+    /** time of the first not yet synced change, or 0 */
+    private long firstChange;
+
+    /** only one flush at a time, from the job or from a build */
+    private final Object flushLock;
+
+    /** number of pending changes shown by the marker */
+    private int markerCount;
+
+    /** name of the sync mode reported by the build metrics */
+    private volatile String mode;
+
+    /** only one write of the queue file at a time, the latest state wins */
+    private final Object saveLock;
+
+    /** true if the queue file may contain changes */
+    private boolean saved;
+
+    private WriteBehindJob(IProject project) {
+        super("FileSync of pending changes in '" + project.getName() + "'");
+        this.project = project;
+        pending = new LinkedHashMap<IPath, Change>();
+        flushLock = new Object();
+        saveLock = new Object();
+        mode = "Write behind";
+        setSystem(true);
+        setRule(new WriteRule());
+    }
+
+    /**
+     * @return the queue of given project, with the changes not synced in the previous
+     * session, if any
+     */
+    public static WriteBehindJob getInstance(IProject project) {
+        synchronized (JOBS) {
+            WriteBehindJob job = JOBS.get(project);
+            if (job == null) {
+                job = new WriteBehindJob(project);
+                job.load();
+                JOBS.put(project, job);
+            }
+            return job;
+        }
+    }
+
+    /**
+     * Stops all queues, called on plugin shutdown. Not synced changes stay in the
+     * queue files and are synced in the next session.
+     */
+    static void shutdown() {
+        List<WriteBehindJob> jobs;
+        synchronized (JOBS) {
+            jobs = new ArrayList<WriteBehindJob>(JOBS.values());
+            JOBS.clear();
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            WriteBehindJob job = jobs.get(i);
+            job.cancel();
+            try {
+                job.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // a cancelled flush puts back not synced changes
+            job.save();
+        }
+    }
+
+    /**
+     * Starts the background sync of collected changes of given project immediately
+     */
+    static void flushNow(IProject project) {
+        WriteBehindJob job = getInstance(project);
+        if (job.getState() != Job.RUNNING) {
+            job.cancel();
+            job.schedule();
+        }
+    }
+
+    /**
+     * Synchronizes all collected changes of given project in the current thread,
+     * should be called before any not deferred build
+     */
+    static void flushPending(IProject project, final IProgressMonitor monitor) {
+        WriteBehindJob job = getInstance(project);
+        // the build monitor is used by the build itself, only cancellation is shared
+        job.flush(new NullProgressMonitor() {
+            @Override
+            public boolean isCanceled() {
+                return monitor.isCanceled();
+            }
+        });
+        job.save();
+        job.updateMarker();
+    }
+
+    /**
+     * Remembers the change of given resource, merging it with previous changes
+     * @param kind one of {@link IResourceDelta} ADDED, REMOVED, CHANGED or REPLACED
+     */
+    public synchronized void add(IResource resource, int kind) {
+        IPath path = resource.getProjectRelativePath();
+        int type = resource.getType();
+        boolean remove = kind == IResourceDelta.REMOVED;
+        Change old = pending.get(path);
+        int removedType = 0;
+        if (old != null && !remove) {
+            if (old.remove && old.type != type) {
+                // file replaced by folder or vice versa: old one must be deleted first
+                removedType = old.type;
+            } else {
+                removedType = old.removedType;
+            }
+        }
+        pending.put(path, new Change(type, remove, removedType));
+        if (firstChange == 0) {
+            firstChange = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Schedules the sync of collected changes and updates the marker
+     * @param debounce true to (re)start the quiet period, false to sync as soon as
+     * possible
+     */
+    void scheduleFlush(boolean debounce) {
+        mode = debounce ? "Debounced" : "Write behind";
+        save();
+        updateMarker();
+        if (!debounce) {
+            schedule();
+            return;
+        }
+        boolean overdue;
+        synchronized (this) {
+            overdue = firstChange != 0
+                    && System.currentTimeMillis() - firstChange > MAX_DELAY;
+        }
+        int state = getState();
+        if (state == Job.RUNNING) {
+            // running flush will see the new changes or reschedule
+            schedule(DELAY);
+            return;
+        }
+        if (state != Job.NONE && !overdue) {
+            // postpone: scheduling a waiting job again would have no effect
+            cancel();
+        }
+        schedule(overdue ? 0 : DELAY);
+    }
+
+    /**
+     * @return copy of pending changes, in the order they would be synced now
+     */
+    public synchronized List<Entry<IPath, Change>> getPendingChanges() {
+        List<Entry<IPath, Change>> changes = new ArrayList<Entry<IPath, Change>>(pending
+                .entrySet());
+        Collections.sort(changes, ORDER);
+        return changes;
+    }
+
+    private synchronized List<Entry<IPath, Change>> takePending() {
+        List<Entry<IPath, Change>> changes = new ArrayList<Entry<IPath, Change>>(pending
+                .entrySet());
+        pending.clear();
+        firstChange = 0;
+        return changes;
+    }
+
+    /**
+     * Puts back not synced changes, newer changes of the same resources win
+     */
+    private synchronized void putBack(List<Entry<IPath, Change>> changes) {
+        Map<IPath, Change> newer = new LinkedHashMap<IPath, Change>(pending);
+        pending.clear();
+        for (int i = 0; i < changes.size(); i++) {
+            Entry<IPath, Change> entry = changes.get(i);
+            pending.put(entry.getKey(), entry.getValue());
+        }
+        pending.putAll(newer);
+        if (firstChange == 0 && !pending.isEmpty()) {
+            firstChange = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Not in the {@link FileSyncBuilder} family: a queued flush must not prevent the
+     * full sync the builder starts after mapping changes.
+     */
+    @Override
+    public boolean belongsTo(Object family) {
+        return family == WriteBehindJob.class;
+    }
+
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+        boolean done = flush(monitor);
+        save();
+        updateMarker();
+        if (!done) {
+            return Status.CANCEL_STATUS;
+        }
+        return Status.OK_STATUS;
+    }
+
+    /**
+     * Shows the number of pending changes on the project. Must not be called while
+     * holding the flush lock: marker changes need the workspace lock, which could be
+     * held by a build waiting for the flush.
+     */
+    public void updateMarker() {
+        int count;
+        synchronized (this) {
+            count = pending.size();
+            if (count == markerCount) {
+                return;
+            }
+            markerCount = count;
+        }
+        if (!project.isAccessible()) {
+            return;
+        }
+        try {
+            IMarker[] markers = project.findMarkers(MARKER_TYPE, false,
+                    IResource.DEPTH_ZERO);
+            if (count == 0) {
+                for (int i = 0; i < markers.length; i++) {
+                    markers[i].delete();
+                }
+                return;
+            }
+            IMarker marker = markers.length > 0 ? markers[0] : project
+                    .createMarker(MARKER_TYPE);
+            marker.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_INFO);
+            marker.setAttribute(IMarker.MESSAGE, count
+                    + " changes not yet synchronized by FileSync");
+        } catch (CoreException e) {
+            FileSyncPlugin.log("Could not update FileSync marker on project '"
+                    + project.getName() + "'", e, IStatus.WARNING);
+        }
+    }
+
+    /**
+     * Writes the pending changes to the queue file, or deletes the file if there are
+     * no pending changes
+     */
+    private void save() {
+        synchronized (saveLock) {
+            List<Entry<IPath, Change>> changes;
+            synchronized (this) {
+                if (pending.isEmpty() && !saved) {
+                    return;
+                }
+                changes = new ArrayList<Entry<IPath, Change>>(pending.entrySet());
+            }
+            File file = getQueueFile();
+            if (file == null) {
+                return;
+            }
+            if (changes.isEmpty()) {
+                if (!file.delete() && file.exists()) {
+                    FileSyncPlugin.log("Could not delete FileSync queue '" + file
+                            + "'", null, IStatus.WARNING);
+                    return;
+                }
+                saved = false;
+                return;
+            }
+            AtomicFileOutputStream fout = null;
+            try {
+                fout = AtomicFileOutputStream.open(file);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        fout));
+                out.writeInt(VERSION);
+                out.writeInt(changes.size());
+                for (int i = 0; i < changes.size(); i++) {
+                    Entry<IPath, Change> entry = changes.get(i);
+                    Change change = entry.getValue();
+                    out.writeUTF(entry.getKey().toPortableString());
+                    out.writeInt(change.type);
+                    out.writeBoolean(change.remove);
+                    out.writeInt(change.removedType);
+                }
+                out.flush();
+                fout.commit();
+                saved = true;
+            } catch (IOException e) {
+                FileSyncPlugin.log("Could not write pending FileSync changes of project '"
+                        + project.getName() + "'", e, IStatus.WARNING);
+            } finally {
+                if (fout != null) {
+                    try {
+                        fout.close();
+                    } catch (IOException e) {
+                        // ignore, the old queue file is still there
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the changes not synced in the previous session
+     */
+    private void load() {
+        File file = getQueueFile();
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    IPath path = Path.fromPortableString(in.readUTF());
+                    pending.put(path, new Change(in.readInt(), in.readBoolean(), in
+                            .readInt()));
+                }
+                if (!pending.isEmpty()) {
+                    firstChange = System.currentTimeMillis();
+                }
+            }
+            saved = true;
+        } catch (IOException e) {
+            FileSyncPlugin.log("Could not read pending FileSync changes of project '"
+                    + project.getName() + "', run full build to synchronize them", e,
+                    IStatus.WARNING);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private File getQueueFile() {
+        if (!project.isAccessible()) {
+            return null;
+        }
+        IPath location = project.getWorkingLocation(FileSyncPlugin.PLUGIN_ID);
+        if (location == null) {
+            return null;
+        }
+        return location.append(QUEUE_FILE).toFile();
+    }
+
+    /**
+     * Synchronizes all collected changes
+     * @return false if cancelled, not synced changes are kept
+     */
+    public boolean flush(IProgressMonitor monitor) {
+        synchronized (flushLock) {
+            List<Entry<IPath, Change>> changes = takePending();
+            if (changes.isEmpty()) {
+                return true;
+            }
+            if (!project.isAccessible()) {
+                synchronized (JOBS) {
+                    JOBS.remove(project);
+                }
+                return true;
+            }
+            Collections.sort(changes, ORDER);
+            SyncWizard wizard = new SyncWizard();
+            try {
+                wizard.setProjectProps(ProjectProperties.getInstance(project));
+            } catch (IllegalArgumentException e) {
+                FileSyncPlugin.log("Couldn't run file sync for project '"
+                        + project.getName() + "': " + e.getMessage(), e, IStatus.WARNING);
+                return true;
+            }
+            BuildMetrics metrics = new BuildMetrics(project.getName(), mode);
+            wizard.setMetrics(metrics);
+            monitor.beginTask(getName(), changes.size());
+            try {
+                for (Iterator<Entry<IPath, Change>> iter = changes.iterator(); iter
+                        .hasNext();) {
+                    if (monitor.isCanceled()) {
+                        putBack(changes);
+                        return false;
+                    }
+                    Entry<IPath, Change> entry = iter.next();
+                    iter.remove();
+                    sync(wizard, entry.getKey(), entry.getValue(), monitor);
+                    metrics.increment(BuildMetrics.Counter.VISITED);
+                    monitor.worked(1);
+                }
+            } finally {
+                wizard.cleanUp(monitor);
+                metrics.finish();
+                monitor.done();
+            }
+            return true;
+        }
+    }
+
+    private void sync(SyncWizard wizard, IPath path, Change change,
+            IProgressMonitor monitor) {
+        IResource resource = getHandle(path, change.type);
+        boolean ok = true;
+        if (change.removedType != 0) {
+            ok = wizard.sync(getHandle(path, change.removedType),
+                    IResourceDelta.REMOVED, monitor);
+        }
+        if (change.remove) {
+            ok &= wizard.sync(resource, IResourceDelta.REMOVED, monitor);
+        } else if (resource.exists()) {
+            // otherwise removed in the meantime, the next change will delete it
+            ok &= wizard.sync(resource, IResourceDelta.CHANGED, monitor);
+        }
+        if (!ok) {
+            wizard.syncFailed(resource);
+        }
+    }
+
+    private IResource getHandle(IPath path, int type) {
+        if (type == IResource.FOLDER) {
+            return project.getFolder(path);
+        }
+        return project.getFile(path);
+    }
+}
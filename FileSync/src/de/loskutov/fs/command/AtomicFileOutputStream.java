@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IStatus;
+
+import de.loskutov.fs.FileSyncPlugin;
+
+/**
+ * Output stream which writes to a temporary file in the destination directory and
+ * replaces the destination with it only on {@link #commit()}, using an atomic move if
+ * the file system supports it. Tools watching the destination never see a truncated
+ * or half written file.
+ * <p>
+ * The permissions of an existing destination (e.g. executable or read-only flags) are
+ * copied to the temporary file before it replaces the destination. The move replaces
+ * the directory entry, so symbolic links must not be written with this stream: see
+ * {@link FS#newOutputStream(File, boolean)}.
+ * <p>
+ * If the stream is closed without commit, the temporary file is deleted and the
+ * destination stays untouched. Temporary files left by a crash are removed by
+ * {@link #deleteStaleFiles(File)}.
+ * @author Andrey
+ */
+public final class AtomicFileOutputStream extends FileOutputStream {
+
+    private static final String TEMP_PREFIX = ".fs-";
+
+    private static final String TEMP_SUFFIX = ".fstmp";
+
+    /** true to force the data to the disk before the destination is replaced */
+    private static final boolean FSYNC = Boolean.getBoolean("fs.fsync");
+
+    /**
+     * temporary files which were not modified since this time (milliseconds) are
+     * not written by anyone anymore
+     */
+    private static final long STALE_AGE = Long.getLong("fs.staletemp", 60 * 1000)
+            .longValue();
+
+    private static final FilenameFilter TEMP_FILES = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+        }
+    };
+
+    private final File destination;
+
+    private final File temp;
+
+    private boolean committed;
+
+    private boolean closed;
+
+    private AtomicFileOutputStream(File temp, File destination) throws IOException {
+        super(temp);
+        this.temp = temp;
+        this.destination = destination;
+    }
+
+    /**
+     * @param destination file to write, parent directory must exist
+     * @return new stream writing to a temporary file next to the destination
+     * @throws IOException if the temporary file can't be created
+     */
+    public static AtomicFileOutputStream open(File destination) throws IOException {
+        File temp = File.createTempFile(TEMP_PREFIX + destination.getName() + "-",
+                TEMP_SUFFIX, destination.getParentFile());
+        try {
+            return new AtomicFileOutputStream(temp, destination);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Flushes and closes the stream and replaces the destination with the written
+     * data.
+     * @throws IOException if the data couldn't be written or the destination
+     * couldn't be replaced. The destination is unchanged in this case.
+     */
+    public void commit() throws IOException {
+        if (closed) {
+            throw new IOException("Stream already closed for file '" + destination + "'");
+        }
+        try {
+            flush();
+            if (FSYNC) {
+                getFD().sync();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        closed = true;
+        super.close();
+        try {
+            copyPermissions();
+            try {
+                Files.move(temp.toPath(), destination.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), destination.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+        } finally {
+            if (!committed) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies the POSIX permissions of the existing destination to the temporary file,
+     * which was created with the default permissions. Does nothing for new files or
+     * on file systems without POSIX permissions.
+     */
+    private void copyPermissions() {
+        PosixFileAttributeView view = Files.getFileAttributeView(destination.toPath(),
+                PosixFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        try {
+            Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+            Files.setPosixFilePermissions(temp.toPath(), permissions);
+        } catch (NoSuchFileException e) {
+            // new file, keep the default permissions
+        } catch (IOException e) {
+            if (FS.enableLogging) {
+                FileSyncPlugin.log("Could not copy permissions of '" + destination
+                        + "'", e, IStatus.WARNING);
+            }
+        }
+    }
+
+    /**
+     * Closes the stream. If it was not committed before, the written data is
+     * discarded.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            if (!committed) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Commits given stream if it is an {@link AtomicFileOutputStream}, does nothing
+     * otherwise
+     */
+    public static void commit(FileOutputStream stream) throws IOException {
+        if (stream instanceof AtomicFileOutputStream) {
+            ((AtomicFileOutputStream) stream).commit();
+        }
+    }
+
+    /**
+     * Deletes temporary files in given directory which were left by interrupted
+     * writes (crash or kill of the VM).
+     * @param dir destination directory, may not exist
+     */
+    public static void deleteStaleFiles(File dir) {
+        File[] files = dir.listFiles(TEMP_FILES);
+        if (files == null) {
+            return;
+        }
+        long staleTime = System.currentTimeMillis() - STALE_AGE;
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            // could be written just now by another copy thread or build
+            if (file.lastModified() < staleTime && !file.delete() && file.exists()
+                    && FS.enableLogging) {
+                FileSyncPlugin.log("Could not delete stale temporary file '" + file
+                        + "'", null, IStatus.WARNING);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fast non-cryptographic 64 bit hash of the file content (multiply-rotate scheme
+ * similar to xxHash64). Used to compare files on different file systems, where the
+ * modification time and size are not reliable.
+ * @author Andrey
+ */
+public final class ContentHash {
+
+    /** returned if the hash could not be computed */
+    public static final long UNKNOWN = 0;
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    private ContentHash() {
+        // don't instantiate me
+    }
+
+    /**
+     * @param file existing file
+     * @return the hash of the file content, never {@link #UNKNOWN}
+     * @throws IOException if the file couldn't be read
+     */
+    public static long hash(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = BUFFERS.get();
+            buffer.clear();
+            long h = PRIME3 ^ channel.size();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.remaining() >= 8) {
+                    h = mix(h, buffer.getLong());
+                }
+                buffer.compact();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                h ^= (buffer.get() & 0xFF) * PRIME3;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+            }
+            h = avalanche(h);
+            return h == UNKNOWN ? 1 : h;
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * @param data
+     * @return the hash of given bytes, same as {@link #hash(File)} would return for a
+     * file with this content, never {@link #UNKNOWN}
+     */
+    public static long hash(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        long h = PRIME3 ^ data.length;
+        while (buffer.remaining() >= 8) {
+            h = mix(h, buffer.getLong());
+        }
+        while (buffer.hasRemaining()) {
+            h ^= (buffer.get() & 0xFF) * PRIME3;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        h = avalanche(h);
+        return h == UNKNOWN ? 1 : h;
+    }
+
+    private static long mix(long h, long k) {
+        k *= PRIME2;
+        k = Long.rotateLeft(k, 31);
+        k *= PRIME1;
+        h ^= k;
+        return Long.rotateLeft(h, 27) * PRIME1 + PRIME3;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+}
@@ -30,6 +30,12 @@ public class CopyDelegate {
 
     protected String encoding;
 
+    /**
+     * true to replace the destination only after all data is written,
+     * see {@link AtomicFileOutputStream}
+     */
+    protected boolean atomicWrite;
+
     public CopyDelegate() {
         super();
         //        setEncoding("ISO-8859-1");
@@ -40,13 +46,13 @@ public class CopyDelegate {
      * Single file copy operation with replacement of variables on the fly.
      * Implementation reads complete file into the memory
      * @param source - should be file only
-     * @param destination - should be already created
+     * @param destination - should be already created, if not written atomically
      * @return true if source was successfully copied
      */
     public boolean copy(File source, File destination) {
 
         if (source == null || destination == null || !source.exists()
-                || !destination.exists() || source.isDirectory()
+                || (!atomicWrite && !destination.exists()) || source.isDirectory()
                 || destination.isDirectory()) {
             if (FS.enableLogging) {
                 FileSyncPlugin.log("Could not copy file '" + source + "' to '"
@@ -95,8 +101,9 @@ public class CopyDelegate {
             }
 
             // write the destination
-            fout = new FileOutputStream(destination);
+            fout = FS.newOutputStream(destination, atomicWrite);
             fout.write(string.getBytes(encoding));
+            AtomicFileOutputStream.commit(fout);
         } catch (IOException e) {
             if (FS.enableLogging) {
                 FileSyncPlugin.log("Could not copy file '" + source + "' to '"
@@ -119,7 +126,7 @@ public class CopyDelegate {
             if (fout != null) {
                 try {
                     fout.close();
-                    if (!useCurrentDateForDestinationFiles) {
+                    if (!useCurrentDateForDestinationFiles && success) {
                         boolean modified = destination.setLastModified(source.lastModified());
                         if(!modified && FS.enableLogging){
                             FileSyncPlugin.log("Could not update last modified stamp for file '"
@@ -148,6 +155,15 @@ public class CopyDelegate {
         this.variablesMap = propertiesMap;
     }
 
+    /**
+     * Sets the variables of given table. Subclasses use the compiled variables from
+     * the table, which are shared by all delegates and builds.
+     * @param table may be null
+     */
+    public void setSubstitutionTable(SubstitutionTable table) {
+        setPropertiesMap(table == null ? null : table.getVariables());
+    }
+
     public boolean isUseCurrentDateForDestinationFiles() {
         return useCurrentDateForDestinationFiles;
     }
@@ -157,6 +173,14 @@ public class CopyDelegate {
         this.useCurrentDateForDestinationFiles = useCurrentDateForDestinationFiles;
     }
 
+    public boolean isAtomicWrite() {
+        return atomicWrite;
+    }
+
+    public void setAtomicWrite(boolean atomicWrite) {
+        this.atomicWrite = atomicWrite;
+    }
+
     public void setEncoding(String encoding) {
         this.encoding = encoding;
     }
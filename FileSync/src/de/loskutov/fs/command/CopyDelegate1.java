@@ -12,11 +12,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.nio.CharBuffer;
 import java.util.Properties;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.eclipse.core.runtime.IStatus;
@@ -27,14 +24,22 @@ import de.loskutov.fs.FileSyncPlugin;
  * @author Andrey
  */
 public class CopyDelegate1 extends CopyDelegate {
-    private Map<Pattern, String> patternToValue;
-    private Map<Pattern, String> patternToKey;
+    /** compiled variables, shared with other delegates */
+    private SubstitutionTable table;
 
     @Override
     public void setPropertiesMap(Properties propertiesMap) {
         if(getPropertiesMap() != propertiesMap) {
-            super.setPropertiesMap(propertiesMap);
-            initPatterns();
+            setSubstitutionTable(propertiesMap == null ? null : new SubstitutionTable(
+                    propertiesMap));
+        }
+    }
+
+    @Override
+    public void setSubstitutionTable(SubstitutionTable substitutionTable) {
+        if (table != substitutionTable) {
+            table = substitutionTable;
+            super.setPropertiesMap(table == null ? null : table.getVariables());
         }
     }
 
@@ -49,26 +54,36 @@ public class CopyDelegate1 extends CopyDelegate {
     protected boolean copyInternal(File source, File destination) {
 
         boolean success = true;
+        String[] keys = table.getKeys();
+        Pattern[] patterns = table.getPatterns();
+        String[] values = table.getValues();
         LineReader reader = null;
         LineWriter writer = null;
+        FileOutputStream fout = null;
 
         try {
             // Open the file and then get a channel from the stream
             reader = new LineReader(new FileInputStream(source), encoding);
-            writer = new LineWriter(new FileOutputStream(destination), encoding);
-            String line = null;
-            while((line = reader.readLineToString()) != null){
-                for (Iterator<Pattern> i = patternToValue.keySet().iterator(); i.hasNext();) {
-                    Pattern pattern =  i.next();
-                    if(line.indexOf(patternToKey.get(pattern)) < 0 ){
+            fout = FS.newOutputStream(destination, atomicWrite);
+            writer = new LineWriter(fout, encoding);
+            CharBuffer buffer = null;
+            while((buffer = reader.readLineBuffer()) != null){
+                if (!containsVariable(buffer)) {
+                    // nothing to replace: write the reused line buffer as is
+                    writer.writeLine(buffer);
+                    continue;
+                }
+                String line = buffer.toString();
+                for (int i = 0; i < patterns.length; i++) {
+                    if(line.indexOf(keys[i]) < 0 ){
                         continue;
                     }
-                    String value = patternToValue.get(pattern);
-                    line = pattern.matcher(line).replaceAll(value);
+                    line = patterns[i].matcher(line).replaceAll(values[i]);
                 }
                 writer.writeLine(line);
             }
             writer.flush();
+            AtomicFileOutputStream.commit(fout);
         } catch (IOException e) {
             if (FS.enableLogging) {
                 FileSyncPlugin.log("Could not copy file '" + source + "' to '"
@@ -91,7 +106,7 @@ public class CopyDelegate1 extends CopyDelegate {
             if (writer != null) {
                 try {
                     writer.close();
-                    if (!useCurrentDateForDestinationFiles) {
+                    if (!useCurrentDateForDestinationFiles && success) {
                         boolean modified = destination.setLastModified(source.lastModified());
                         if(!modified && FS.enableLogging){
                             FileSyncPlugin.log("Could not update last modified stamp for file '"
@@ -107,20 +122,30 @@ public class CopyDelegate1 extends CopyDelegate {
                     }
                     success = false;
                 }
+            } else if (fout != null) {
+                // writer couldn't be created: discard the output
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                    // ignore
+                }
             }
         }
         return success;
     }
 
-    private void initPatterns() {
-        patternToValue = new HashMap<Pattern, String>();
-        patternToKey = new HashMap<Pattern, String>();
-        Set<String> keySet = variablesMap.stringPropertyNames();
-        for (String key : keySet) {
-            Pattern pattern = Pattern.compile("\\$\\{" + key + "\\}");
-            patternToValue.put(pattern, variablesMap.getProperty(key));
-            patternToKey.put(pattern, key);
+    /**
+     * @return true if the line contains at least one "${" sequence
+     */
+    private static boolean containsVariable(CharBuffer line) {
+        char[] chars = line.array();
+        int end = line.arrayOffset() + line.limit() - 1;
+        for (int i = line.arrayOffset() + line.position(); i < end; i++) {
+            if (chars[i] == '$' && chars[i + 1] == '{') {
+                return true;
+            }
         }
+        return false;
     }
 
 
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Strategy to copy the content of one file channel into another one. Which strategy is
+ * used depends on the file size:
+ * <ul>
+ * <li>tiny files are copied through a plain heap buffer,</li>
+ * <li>medium files are copied through a pooled direct buffer,</li>
+ * <li>large files are copied with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, which uses zero-copy system calls like
+ * sendfile if the OS supports it.</li>
+ * </ul>
+ * Thresholds could be changed via "fs.copy.tinysize" and "fs.copy.largesize" system
+ * properties (in bytes), the tiny size is limited to 64 MB. Each strategy counts copied bytes and the time spent.
+ * @author Andrey
+ */
+public abstract class CopyStrategy {
+
+    public static final String KEY_TINY_SIZE = "fs.copy.tinysize";
+
+    public static final String KEY_LARGE_SIZE = "fs.copy.largesize";
+
+    /** heap copy reads the whole file into one buffer, which must fit into an array */
+    private static final long MAX_TINY_SIZE = 64 * 1024 * 1024;
+
+    private static final long TINY_SIZE = Math.min(Long.getLong(KEY_TINY_SIZE, 16 * 1024)
+            .longValue(), MAX_TINY_SIZE);
+
+    private static final long LARGE_SIZE = Long.getLong(KEY_LARGE_SIZE, 4 * 1024 * 1024)
+            .longValue();
+
+    public static final CopyStrategy HEAP = new HeapCopy();
+
+    public static final CopyStrategy DIRECT_BUFFER = new DirectBufferCopy();
+
+    public static final CopyStrategy TRANSFER = new ChannelTransfer();
+
+    private final String name;
+
+    private final AtomicLong bytes;
+
+    private final AtomicLong nanos;
+
+    private final AtomicLong files;
+
+    CopyStrategy(String name) {
+        this.name = name;
+        bytes = new AtomicLong();
+        nanos = new AtomicLong();
+        files = new AtomicLong();
+    }
+
+    /**
+     * @param size file size in bytes
+     * @return the best strategy to copy the file of given size
+     */
+    public static CopyStrategy forSize(long size) {
+        if (size < TINY_SIZE) {
+            return HEAP;
+        }
+        if (size < LARGE_SIZE) {
+            return DIRECT_BUFFER;
+        }
+        return TRANSFER;
+    }
+
+    /**
+     * @return all known strategies
+     */
+    public static CopyStrategy[] getAll() {
+        return new CopyStrategy[] { HEAP, DIRECT_BUFFER, TRANSFER };
+    }
+
+    /**
+     * Copies given number of bytes from the input to the output channel, starting at
+     * the current position of both channels.
+     * @param in source channel
+     * @param out destination channel
+     * @param size number of bytes to copy
+     * @throws IOException if the copy fails or if less then expected bytes could be
+     * copied
+     */
+    public final void copy(FileChannel in, FileChannel out, long size) throws IOException {
+        long start = System.nanoTime();
+        long copied = copyInternal(in, out, size);
+        nanos.addAndGet(System.nanoTime() - start);
+        bytes.addAndGet(copied);
+        files.incrementAndGet();
+        if (copied != size) {
+            throw new IOException("Only " + copied + " of " + size + " bytes copied");
+        }
+    }
+
+    /**
+     * @return number of really copied bytes
+     */
+    protected abstract long copyInternal(FileChannel in, FileChannel out, long size)
+            throws IOException;
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBytesCopied() {
+        return bytes.get();
+    }
+
+    public long getFilesCopied() {
+        return files.get();
+    }
+
+    /**
+     * @return average throughput since start, or 0 if nothing was copied yet
+     */
+    public long getBytesPerSecond() {
+        long time = nanos.get();
+        if (time == 0) {
+            return 0;
+        }
+        return (long) (bytes.get() * 1000000000.0 / time);
+    }
+
+    public void resetStatistics() {
+        bytes.set(0);
+        nanos.set(0);
+        files.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getFilesCopied() + " files, " + getBytesCopied() + " bytes, "
+                + getBytesPerSecond() / 1024 + " KB/s";
+    }
+
+    static long writeFully(ByteBuffer buffer, FileChannel out) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer);
+        }
+        return written;
+    }
+
+    /**
+     * Copy through the plain heap buffer
+     */
+    static final class HeapCopy extends CopyStrategy {
+
+        HeapCopy() {
+            super("heap");
+        }
+
+        @Override
+        protected long copyInternal(FileChannel in, FileChannel out, long size)
+                throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return writeFully(buffer, out);
+        }
+    }
+
+    /**
+     * Copy through one of the pooled direct buffers
+     */
+    static final class DirectBufferCopy extends CopyStrategy {
+
+        private static final int BUFFER_SIZE = 256 * 1024;
+
+        private final ConcurrentLinkedQueue<ByteBuffer> pool;
+
+        DirectBufferCopy() {
+            super("direct buffer");
+            pool = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+
+        @Override
+        protected long copyInternal(FileChannel in, FileChannel out, long size)
+                throws IOException {
+            ByteBuffer buffer = pool.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            try {
+                long copied = 0;
+                while (copied < size) {
+                    buffer.clear();
+                    if (size - copied < buffer.capacity()) {
+                        buffer.limit((int) (size - copied));
+                    }
+                    if (in.read(buffer) < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    copied += writeFully(buffer, out);
+                }
+                return copied;
+            } finally {
+                pool.offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Zero-copy transfer between channels (sendfile and similar)
+     */
+    static final class ChannelTransfer extends CopyStrategy {
+
+        /** some platforms do not transfer more then 2GB at once */
+        private static final long MAX_CHUNK = 64 * 1024 * 1024;
+
+        ChannelTransfer() {
+            super("transfer");
+        }
+
+        @Override
+        protected long copyInternal(FileChannel in, FileChannel out, long size)
+                throws IOException {
+            long position = in.position();
+            long copied = 0;
+            while (copied < size) {
+                long count = in.transferTo(position + copied,
+                        Math.min(size - copied, MAX_CHUNK), out);
+                if (count <= 0) {
+                    // source was truncated in between
+                    break;
+                }
+                copied += count;
+            }
+            return copied;
+        }
+    }
+}
@@ -13,6 +13,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import org.eclipse.core.runtime.IStatus;
 
@@ -62,7 +64,8 @@ public final class FS {
             File dir = destination.getParentFile();
             if (!dir.exists()) {
                 result = dir.mkdirs();
-                if (!result) {
+                // directory could be created concurrently by another copy thread
+                if (!result && !dir.isDirectory()) {
                     if (enableLogging) {
                         FileSyncPlugin.log("Could not create directory '" + dir + "'",
                                 null, IStatus.WARNING);
@@ -91,35 +94,24 @@ public final class FS {
     /**
      * If "recursive" is false, then this is a single file/directory delete
      * operation. Directory should be empty before it can be deleted.
-     * If "recursive" is true, then all children will be deleted too.
+     * If "recursive" is true, then all children will be deleted too, see
+     * {@link TreeDeleter}. Failures are logged once for the whole tree.
      * @param source
      * @return true if source was successfully deleted or if it was not existing
      */
     public static boolean delete(File source, boolean recursive) {
-        if (source == null || !source.exists()) {
+        if (source == null) {
             return true;
         }
         if (recursive) {
-            if (source.isDirectory()) {
-                File[] files = source.listFiles();
-                boolean ok = true;
-                for (int i = 0; i < files.length; i++) {
-                    ok = delete(files[i], true);
-                    if (!ok) {
-                        return false;
-                    }
-                }
-            } /* comented out because this kind of decisions is for SyncWizard only
-             else {
-             File dir = source.getParentFile();
-             boolean ok = delete(source, false);
-             if(ok && dir.list().length == 0){
-             // delete parant directory, because it is now empty
-             // and we have a clean build
-             ok = delete(dir, false);
-             }
-             return ok;
-             } */
+            TreeDeleter.Result result = TreeDeleter.delete(source);
+            if (!result.isOk() && enableLogging) {
+                FileSyncPlugin.log(result.toString(), null, IStatus.WARNING);
+            }
+            return result.isOk();
+        }
+        if (!source.exists()) {
+            return true;
         }
         boolean result = source.delete();
         if (!result && !source.isDirectory() && enableLogging) {
@@ -129,6 +121,74 @@ public final class FS {
         return result;
     }
 
+    /**
+     * Renames given file or directory. The content is never copied: if source and
+     * destination are on different file systems, the rename fails.
+     * @param source existing file or directory
+     * @param destination new name. Existing file is replaced, existing directory
+     * only if it is empty. Missing parent directories are created.
+     * @return true if source was renamed, false if this is not possible
+     */
+    public static boolean move(File source, File destination) {
+        File dir = destination.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            return false;
+        }
+        try {
+            Files.move(source.toPath(), destination.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            // not existing source, not empty destination directory, different
+            // file system etc: caller should copy instead
+            return false;
+        } catch (RuntimeException e) {
+            // invalid path
+            return false;
+        }
+    }
+
+    /**
+     * Compares the destination with the source by content hash. This works also if
+     * source and destination are on different file systems.
+     * @param sourceHash the {@link ContentHash} of the source file
+     * @param destination destination file, may not exist
+     * @return true if the destination has the same size and content hash as the source
+     */
+    public static boolean isSameContent(File source, long sourceHash, File destination) {
+        if (sourceHash == ContentHash.UNKNOWN || !destination.isFile()
+                || destination.length() != source.length()) {
+            return false;
+        }
+        try {
+            return ContentHash.hash(destination) == sourceHash;
+        } catch (IOException e) {
+            if (enableLogging) {
+                FileSyncPlugin.log("Could not read file '" + destination + "'", e,
+                        IStatus.WARNING);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Opens the output stream to write the destination file.
+     * @param destination file to write
+     * @param atomicWrite true to write a temporary file first, which replaces the
+     * destination only after {@link AtomicFileOutputStream#commit(FileOutputStream)}.
+     * Ignored if the destination is a symbolic link: the link target is written
+     * directly, as replacing the link would break it.
+     * @return new output stream
+     * @throws IOException
+     */
+    public static FileOutputStream newOutputStream(File destination, boolean atomicWrite)
+            throws IOException {
+        if (atomicWrite && !Files.isSymbolicLink(destination.toPath())) {
+            return AtomicFileOutputStream.open(destination);
+        }
+        return new FileOutputStream(destination);
+    }
+
     /**
      * Single file copy operation.
      * @param source - should be file only
@@ -139,8 +199,42 @@ public final class FS {
      */
     public static boolean copy(File source, File destination,
             boolean useCurrentDateForDestinationFiles) {
+        return copy(source, destination, useCurrentDateForDestinationFiles, false);
+    }
+
+    /**
+     * Single file copy operation.
+     * @param source - should be file only
+     * @param destination - should be already created, if not written atomically
+     * @param useCurrentDateForDestinationFiles To use current date for
+     * destination files instead of the source file date
+     * @param atomicWrite true to replace the destination only after all data is
+     * written, see {@link AtomicFileOutputStream}
+     * @return true if source was successfully copied
+     */
+    public static boolean copy(File source, File destination,
+            boolean useCurrentDateForDestinationFiles, boolean atomicWrite) {
+        return copy(source, destination, useCurrentDateForDestinationFiles, atomicWrite,
+                false);
+    }
+
+    /**
+     * Single file copy operation.
+     * @param source - should be file only
+     * @param destination - should be already created, if not written atomically
+     * @param useCurrentDateForDestinationFiles To use current date for
+     * destination files instead of the source file date
+     * @param atomicWrite true to replace the destination only after all data is
+     * written, see {@link AtomicFileOutputStream}
+     * @param force true to copy also if destination has same size and modification
+     * time, e.g. because the content is already known to differ
+     * @return true if source was successfully copied
+     */
+    public static boolean copy(File source, File destination,
+            boolean useCurrentDateForDestinationFiles, boolean atomicWrite,
+            boolean force) {
         if (source == null || destination == null || !source.exists()
-                || !destination.exists() || source.isDirectory()
+                || (!atomicWrite && !destination.exists()) || source.isDirectory()
                 || destination.isDirectory()) {
             if (enableLogging) {
                 FileSyncPlugin.log("Could not copy file '" + source + "' to '"
@@ -157,7 +251,7 @@ public final class FS {
          * 2) the file time could differ because of different timestamp
          * formats on different file systems (e.g. NTFS and FAT)
          */
-        if (!useCurrentDateForDestinationFiles
+        if (!force && !useCurrentDateForDestinationFiles
                 && destination.lastModified() == source.lastModified()
                 && destination.length() == source.length()) {
             return true;
@@ -174,21 +268,17 @@ public final class FS {
             // Now get the output channel
             FileChannel out;
 
-            fout = new FileOutputStream(destination); // open file stream
+            fout = newOutputStream(destination, atomicWrite); // open file stream
             out = fout.getChannel(); // get its channel
 
             // Query the size of the input file
             long numbytes = in.size();
 
-            // Bulk-transfer all bytes from one channel to the other.
-            // This is a special feature of FileChannel channels.
-            // See also FileChannel.transferFrom( )
-
-            // TransferTo does not work under certain Linux kernel's
-            // with java 1.4.2, see bug
-            // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5056395
-            // in.transferTo(0, numbytes, out);
-            out.transferFrom(in, 0, numbytes);
+            // Transfer all bytes from one channel to the other, the way how it is
+            // done depends on the file size. Throws exception if not all bytes
+            // could be copied
+            CopyStrategy.forSize(numbytes).copy(in, out, numbytes);
+            AtomicFileOutputStream.commit(fout);
         } catch (IOException e) {
             if (enableLogging) {
                 FileSyncPlugin.log("Could not copy file '" + source + "' to '"
@@ -213,7 +303,8 @@ public final class FS {
             if (fout != null) {
                 try {
                     fout.close();
-                    if (!useCurrentDateForDestinationFiles) {
+                    // failed atomic write leaves the old destination untouched
+                    if (!useCurrentDateForDestinationFiles && success) {
                         boolean modified = destination.setLastModified(source.lastModified());
                         if(!modified && FS.enableLogging){
                             FileSyncPlugin.log("Could not update last modified stamp for file '"
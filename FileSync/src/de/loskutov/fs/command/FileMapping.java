@@ -19,6 +19,7 @@ import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
 
 import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.builder.PatternMatcher;
 
 /**
  * @author Andrey
@@ -66,6 +67,8 @@ public class FileMapping {
 
     private char[][] fullCharInclusionPatterns;
 
+    private PatternMatcher matcher;
+
     private static final char[][] EMPTY_CHARS = new char[0][];
 
     private static final char[][] ALL_CHARS = new char[][] { "**/*".toCharArray() };
@@ -74,7 +77,7 @@ public class FileMapping {
 
     private IPath variablesPath;
 
-    private Properties varProps;
+    private SubstitutionTable substitutionTable;
 
     private IPath projectPath;
 
@@ -283,6 +286,7 @@ public class FileMapping {
     public void setExclusionPatterns(IPath[] exclusionPatterns) {
         this.exclusionPatterns = exclusionPatterns;
         fullCharExclusionPatterns = null;
+        matcher = null;
     }
 
     /**
@@ -298,6 +302,7 @@ public class FileMapping {
     public void setInclusionPatterns(IPath[] inclusionPatterns) {
         this.inclusionPatterns = inclusionPatterns;
         fullCharInclusionPatterns = null;
+        matcher = null;
     }
 
     /**
@@ -355,6 +360,19 @@ public class FileMapping {
         return fullCharInclusionPatterns;
     }
 
+    /**
+     * @return precompiled inclusion and exclusion patterns of this mapping
+     */
+    public PatternMatcher getMatcher() {
+        PatternMatcher result = matcher;
+        if (result == null) {
+            result = new PatternMatcher(fullInclusionPatternChars(),
+                    fullExclusionPatternChars());
+            matcher = result;
+        }
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#equals(java.lang.Object)
      */
@@ -407,11 +425,22 @@ public class FileMapping {
     }
 
     public Properties getVariables(){
-        return varProps;
+        return substitutionTable == null ? null : substitutionTable.getVariables();
     }
 
     public void setVariables(Properties varProps) {
-        this.varProps = varProps;
+        substitutionTable = varProps == null ? null : new SubstitutionTable(varProps);
+    }
+
+    /**
+     * @return the variables with their compiled form, may be null
+     */
+    public SubstitutionTable getSubstitutionTable() {
+        return substitutionTable;
+    }
+
+    public void setSubstitutionTable(SubstitutionTable substitutionTable) {
+        this.substitutionTable = substitutionTable;
     }
 
     public static IPath getRelativePath(IPath filePath, IPath projectPath){
@@ -14,6 +14,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
 
 /**
  * A class for reading String lines from stream and preserve line ends.
@@ -46,6 +47,15 @@ public class LineReader {
 
     private InputStreamReader inReader;
 
+    /** characters of the last read line, reused for all lines */
+    private char[] line;
+
+    /** length of the last read line */
+    private int lineLength;
+
+    /** view on the line array, returned by {@link #readLineBuffer()} */
+    private CharBuffer lineView;
+
     /**
      * Create an InputStreamReader that uses the default charset.
      * @param  in   An InputStream
@@ -56,6 +66,8 @@ public class LineReader {
             inReader = new InputStreamReader(in, encoding);
         }
         charBuffer = new char[charBufferSize];
+        line = new char[256];
+        lineView = CharBuffer.wrap(line);
     }
 
     /**
@@ -77,8 +89,10 @@ public class LineReader {
      * @exception  IOException  If an I/O error occurs
      */
     public String readLineToString() throws IOException {
-        StringBuffer sb = readLine();
-        return sb == null ? null : sb.toString();
+        if (!fillLine()) {
+            return null;
+        }
+        return new String(line, 0, lineLength);
     }
 
     /**
@@ -92,10 +106,45 @@ public class LineReader {
      * @exception  IOException  If an I/O error occurs
      */
     public StringBuffer readLine() throws IOException {
-        if (readSize < 0) {
+        if (!fillLine()) {
+            return null;
+        }
+        StringBuffer sb = new StringBuffer(lineLength);
+        sb.append(line, 0, lineLength);
+        return sb;
+    }
+
+    /**
+     * Read a line of text without creating new objects. A line is considered to be
+     * terminated by any one of a line feed ('\n'), a carriage return ('\r'), or a
+     * carriage return followed immediately by a linefeed.
+     *
+     * @return <b>CharBuffer</b> instance, contains next line from input stream,
+     * including all line-termination characters, or null if the end of the stream has
+     * been reached. The returned buffer (and its backing array) is reused and
+     * overridden by the next read operation.
+     *
+     * @exception  IOException  If an I/O error occurs
+     */
+    public CharBuffer readLineBuffer() throws IOException {
+        if (!fillLine()) {
             return null;
         }
-        StringBuffer line = null;
+        lineView.clear();
+        lineView.limit(lineLength);
+        return lineView;
+    }
+
+    /**
+     * Reads the next line into the line array.
+     * @return false if the end of the stream has been reached and nothing was read
+     */
+    private boolean fillLine() throws IOException {
+        lineLength = 0;
+        if (readSize < 0) {
+            return false;
+        }
+        boolean hasLine = false;
 
         // if no more characters are in buffer since last line read
         if (lastLineEndIdx + 1 == bufferEndIdx + 1) {
@@ -108,21 +157,16 @@ public class LineReader {
                     bufferEndIdx + 1);
             // if found, return part of buffer, contains this line
             if (newLineEndIdx >= 0) {
-                line = new StringBuffer(newLineEndIdx - lastLineEndIdx);
-                line
-                .append(partOfArray(charBuffer, lastLineEndIdx + 1,
-                        newLineEndIdx + 1));
+                appendToLine(lastLineEndIdx + 1, newLineEndIdx + 1);
                 lastLineEndIdx = newLineEndIdx;
-                return line;
+                return true;
             }
             // buffer contains unreaded chars, but end of buffer has been reached without
             // next line end char; or after '\r' char no chars found in buffer
             // and we should check next char for '\n'
             // save "unreaded" chars
-            char[] lastChars = partOfArray(charBuffer, lastLineEndIdx + 1,
-                    bufferEndIdx + 1);
-            line = new StringBuffer(lastChars.length);
-            line.append(lastChars);
+            appendToLine(lastLineEndIdx + 1, bufferEndIdx + 1);
+            hasLine = true;
 
             // buffer is empty now
             bufferEndIdx = -1;
@@ -136,7 +180,7 @@ public class LineReader {
 
             // end of stream
             if (readSize < 0) {
-                return line;
+                return hasLine;
             }
             // last char from last read
             int lastCharIdx = bufferEndIdx;
@@ -148,7 +192,7 @@ public class LineReader {
                 checkLF = false;
                 // it was single '\r', also we can finish search and return line
                 if (charBuffer[lastCharIdx + 1] != '\n') {
-                    return line;
+                    return hasLine;
                 }
             }
 
@@ -160,11 +204,8 @@ public class LineReader {
             int newPartEndIdx = newLineEndIdx < 0 ? bufferEndIdx + 1 : newLineEndIdx + 1;
 
             // add new part to line
-            char[] newPart = partOfArray(charBuffer, lastLineEndIdx + 1, newPartEndIdx);
-            if (line == null) {
-                line = new StringBuffer(newPart.length);
-            }
-            line.append(newPart);
+            appendToLine(lastLineEndIdx + 1, newPartEndIdx);
+            hasLine = true;
 
             // re-set buffer end index, if buffer is full and line end is not found
             if (newLineEndIdx < 0 && bufferEndIdx + 1 == charBufferSize) { //
@@ -174,7 +215,24 @@ public class LineReader {
             lastLineEndIdx = newLineEndIdx;
         } while (lastLineEndIdx < 0);
 
-        return line;
+        return true;
+    }
+
+    /**
+     * Appends part of the input buffer to the current line
+     * @param startIdx start offset, inclusive
+     * @param stopIdx stop offset, exclusive
+     */
+    private void appendToLine(int startIdx, int stopIdx) {
+        int size = stopIdx - startIdx;
+        if (lineLength + size > line.length) {
+            char[] newLine = new char[Math.max(lineLength + size, line.length * 2)];
+            System.arraycopy(line, 0, newLine, 0, lineLength);
+            line = newLine;
+            lineView = CharBuffer.wrap(line);
+        }
+        System.arraycopy(charBuffer, startIdx, line, lineLength, size);
+        lineLength += size;
     }
 
     /**
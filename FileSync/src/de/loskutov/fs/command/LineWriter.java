@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
 
 /**
  * A class for writing String lines to stream and preserve a information about line ends.
@@ -49,7 +50,21 @@ public class LineWriter extends OutputStreamWriter {
      * followed immediately by a linefeed.
      */
     public void writeLine(String line) throws IOException {
-        write(line.toCharArray(), 0, line.length());
+        write(line, 0, line.length());
+    }
+
+    /**
+     * Write given line to stream. No extra line end characters would be added, nor line changed by
+     * write operation. The buffer position is not changed.
+     * @param line <b>CharBuffer</b>, contains line <b>including</b> all line-termination
+     * characters between its position and limit.
+     */
+    public void writeLine(CharBuffer line) throws IOException {
+        if (line.hasArray()) {
+            write(line.array(), line.arrayOffset() + line.position(), line.remaining());
+        } else {
+            write(line.toString(), 0, line.remaining());
+        }
     }
 
 }
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming copy delegate which reads large files through a large window
+ * ({@link MappedFileReader}) instead of a buffered file stream. Tokens crossing the
+ * window or buffer borders are matched by the {@link VariablesAutomaton}, which keeps
+ * the partial token between reads. Memory usage doesn't depend on the file size.
+ * <p>
+ * Files smaller than "fs.mapsize" bytes (default 256 KB) are read through a stream,
+ * because the large window costs more than it saves for them. The window size can be
+ * set with "fs.mapwindow" (default 1 MB).
+ * <p>
+ * Can be selected with "-Dfs.copydelegate=MappedCopyDelegate".
+ * @author Andrey
+ */
+public class MappedCopyDelegate extends StreamingCopyDelegate {
+
+    private static final long MAP_SIZE = Long.getLong("fs.mapsize", 256 * 1024)
+            .longValue();
+
+    /** min. file size in bytes to use the window reader */
+    private final long mapSize;
+
+    private final int windowSize;
+
+    public MappedCopyDelegate() {
+        this(MAP_SIZE, MappedFileReader.WINDOW_SIZE);
+    }
+
+    /**
+     * @param mapSize min. file size in bytes to read the file through the window,
+     * smaller files are read through a stream
+     * @param windowSize window size in bytes, see {@link MappedFileReader}
+     */
+    public MappedCopyDelegate(long mapSize, int windowSize) {
+        super();
+        this.mapSize = mapSize;
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    protected Reader openReader(File source) throws IOException {
+        if (source.length() < mapSize) {
+            return super.openReader(source);
+        }
+        return new MappedFileReader(source, encoding, windowSize);
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reader which decodes a file through a fixed size window, which is read from the
+ * file channel and moved over the file. Files of any size (also over 2 GB) are read
+ * with constant memory.
+ * <p>
+ * The window is not memory mapped: mapped buffers are released only by the garbage
+ * collector, which keeps the file locked on Windows and would keep one mapping per
+ * window alive for large files. The class name is kept for compatibility.
+ * <p>
+ * Multi-byte characters crossing the window border are handled by moving the not
+ * yet decoded bytes to the window start before the next bytes are read. Malformed
+ * input is replaced, the same way as {@link java.io.InputStreamReader} does it.
+ * @author Andrey
+ */
+public class MappedFileReader extends Reader {
+
+    /** default window size in bytes */
+    static final int WINDOW_SIZE = Integer.getInteger("fs.mapwindow", 1024 * 1024)
+            .intValue();
+
+    /**
+     * min. window size in bytes, must be larger as the longest byte sequence of one
+     * character, otherwise the window couldn't move forward
+     */
+    private static final int MIN_WINDOW_SIZE = 16;
+
+    private static final int CHAR_BUFFER_SIZE = 8192;
+
+    private final FileInputStream stream;
+
+    private final FileChannel channel;
+
+    private final CharsetDecoder decoder;
+
+    /** decoded characters, always in "read" mode */
+    private final CharBuffer chars;
+
+    /** bytes read from the file, always in "read" mode */
+    private final ByteBuffer window;
+
+    private boolean endOfInput;
+
+    /** true if all bytes are decoded, only decoder flush is pending */
+    private boolean decoded;
+
+    private boolean flushed;
+
+    /**
+     * @param file file to read
+     * @param encoding file encoding
+     * @throws IOException if the file can't be opened
+     */
+    public MappedFileReader(File file, String encoding) throws IOException {
+        this(file, encoding, WINDOW_SIZE);
+    }
+
+    /**
+     * @param file file to read
+     * @param encoding file encoding
+     * @param windowSize size of the window in bytes, at least 16
+     * @throws IOException if the file can't be opened
+     */
+    public MappedFileReader(File file, String encoding, int windowSize)
+            throws IOException {
+        super();
+        decoder = Charset.forName(encoding).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+        chars.flip();
+        window = ByteBuffer.allocate(Math.max(MIN_WINDOW_SIZE, windowSize));
+        window.flip();
+        stream = new FileInputStream(file);
+        channel = stream.getChannel();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!chars.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, chars.remaining());
+        chars.get(cbuf, off, count);
+        return count;
+    }
+
+    /**
+     * Decodes next characters into the char buffer
+     * @return false if there is nothing more to read
+     */
+    private boolean fill() throws IOException {
+        chars.clear();
+        try {
+            while (chars.position() == 0 && !flushed) {
+                if (decoded) {
+                    flushed = decoder.flush(chars).isUnderflow();
+                    continue;
+                }
+                CoderResult result = decoder.decode(window, chars, endOfInput);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (!result.isUnderflow()) {
+                    // char buffer is full
+                    continue;
+                }
+                if (endOfInput) {
+                    decoded = true;
+                    flushed = decoder.flush(chars).isUnderflow();
+                } else {
+                    readNext();
+                }
+            }
+        } finally {
+            chars.flip();
+        }
+        return chars.hasRemaining();
+    }
+
+    /**
+     * Moves the not yet decoded bytes (an incomplete character) to the window start
+     * and fills the rest of the window from the file
+     */
+    private void readNext() throws IOException {
+        window.compact();
+        try {
+            while (window.hasRemaining()) {
+                if (channel.read(window) < 0) {
+                    endOfInput = true;
+                    break;
+                }
+            }
+        } finally {
+            window.flip();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
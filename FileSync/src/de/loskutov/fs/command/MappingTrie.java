@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Immutable trie of mapping source path segments. Answers the question "which
+ * mappings are responsible for the given path" with one walk over the path segments,
+ * independently from the number of mappings.
+ * <p>
+ * The trie is created together with the mappings by {@link
+ * de.loskutov.fs.properties.ProjectProperties} and can be shared between threads.
+ * @author Andrey
+ */
+public final class MappingTrie {
+
+    private static final FileMapping[] NO_MAPPINGS = new FileMapping[0];
+
+    private final FileMapping[] mappings;
+
+    private final Node root;
+
+    /**
+     * @param mappings project mappings, the order of the array is preserved in all
+     * results
+     */
+    public MappingTrie(FileMapping[] mappings) {
+        this.mappings = mappings == null ? NO_MAPPINGS : mappings;
+        root = new Node();
+        for (int i = 0; i < this.mappings.length; i++) {
+            IPath sourcePath = this.mappings[i].getSourcePath();
+            Node node = root;
+            int segmentCount = sourcePath.segmentCount();
+            for (int j = 0; j < segmentCount; j++) {
+                node = node.getOrCreateChild(sourcePath.segment(j));
+            }
+            node.addMapping(i);
+        }
+    }
+
+    /**
+     * @return the mappings this trie was created for
+     */
+    public FileMapping[] getAllMappings() {
+        return mappings;
+    }
+
+    /**
+     * Same as looking for mappings with source path which is a prefix of given path
+     * @param path project relative path
+     * @return mappings with source path which is equal or a parent of given path, in
+     * the original mapping order, never null
+     */
+    public FileMapping[] getMappings(IPath path) {
+        int[] found = null;
+        int count = 0;
+        Node node = root;
+        int segmentCount = path.segmentCount();
+        for (int i = 0; node != null; i++) {
+            int[] indices = node.mappings;
+            if (indices.length > 0) {
+                if (found == null) {
+                    found = indices.clone();
+                    count = found.length;
+                } else {
+                    found = Arrays.copyOf(found, count + indices.length);
+                    System.arraycopy(indices, 0, found, count, indices.length);
+                    count = found.length;
+                }
+            }
+            node = i < segmentCount ? node.getChild(path.segment(i)) : null;
+        }
+        if (found == null) {
+            return NO_MAPPINGS;
+        }
+        Arrays.sort(found);
+        FileMapping[] result = new FileMapping[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = mappings[found[i]];
+        }
+        return result;
+    }
+
+    /**
+     * @param path project relative path
+     * @return true if at least one mapping source path is equal or a parent of given
+     * path
+     */
+    public boolean hasMapping(IPath path) {
+        Node node = root;
+        int segmentCount = path.segmentCount();
+        for (int i = 0; node != null; i++) {
+            if (node.mappings.length > 0) {
+                return true;
+            }
+            node = i < segmentCount ? node.getChild(path.segment(i)) : null;
+        }
+        return false;
+    }
+
+    /**
+     * @param path project relative path
+     * @return true if given path is equal or a parent of at least one mapping source path
+     */
+    public boolean hasMappedChildren(IPath path) {
+        Node node = root;
+        int segmentCount = path.segmentCount();
+        for (int i = 0; i < segmentCount && node != null; i++) {
+            node = node.getChild(path.segment(i));
+        }
+        // each existing node is a part of some source path
+        return node != null && (node != root || mappings.length > 0);
+    }
+
+    /**
+     * @param path project relative path
+     * @return true if given path is a parent (but not equal) of at least one mapping
+     * source path
+     */
+    public boolean hasMappingsBelow(IPath path) {
+        Node node = root;
+        int segmentCount = path.segmentCount();
+        for (int i = 0; i < segmentCount && node != null; i++) {
+            node = node.getChild(path.segment(i));
+        }
+        return node != null && node.children != null && !node.children.isEmpty();
+    }
+
+    private static final class Node {
+        private static final int[] NONE = new int[0];
+
+        private Map<String, Node> children;
+
+        /** indices of mappings with source path ending at this node */
+        int[] mappings = NONE;
+
+        Node getChild(String segment) {
+            return children == null ? null : children.get(segment);
+        }
+
+        Node getOrCreateChild(String segment) {
+            if (children == null) {
+                children = new HashMap<String, Node>(4);
+            }
+            Node child = children.get(segment);
+            if (child == null) {
+                child = new Node();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        void addMapping(int index) {
+            mappings = Arrays.copyOf(mappings, mappings.length + 1);
+            mappings[mappings.length - 1] = index;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Properties;
+
+import org.eclipse.core.runtime.IStatus;
+
+import de.loskutov.fs.FileSyncPlugin;
+
+/**
+ * Copy delegate which replaces all variables in one single pass over the file
+ * content, using {@link VariablesAutomaton}. The cost per character doesn't depend on
+ * the number of variables.
+ * <p>
+ * Can be selected with "-Dfs.copydelegate=StreamingCopyDelegate".
+ * @author Andrey
+ */
+public class StreamingCopyDelegate extends CopyDelegate {
+
+    private VariablesAutomaton automaton;
+
+    /** compiled variables, shared with other delegates */
+    private SubstitutionTable table;
+
+    @Override
+    public void setPropertiesMap(Properties propertiesMap) {
+        if(getPropertiesMap() != propertiesMap) {
+            setSubstitutionTable(propertiesMap == null ? null : new SubstitutionTable(
+                    propertiesMap));
+        }
+    }
+
+    @Override
+    public void setSubstitutionTable(SubstitutionTable substitutionTable) {
+        if (table != substitutionTable) {
+            table = substitutionTable;
+            super.setPropertiesMap(table == null ? null : table.getVariables());
+            automaton = table == null ? null : table.getAutomaton();
+        }
+    }
+
+    /**
+     * @param source file to read
+     * @return reader decoding the source file using current encoding
+     * @throws IOException
+     */
+    protected Reader openReader(File source) throws IOException {
+        return new InputStreamReader(new FileInputStream(source), encoding);
+    }
+
+    /**
+     * Single file copy operation with replacement of variables on the fly.
+     * Implementation streams the file through the variables automaton, so that files
+     * of any size could be proceeded
+     * @param source - should be file only
+     * @param destination - should be already created
+     * @return true if source was successfully copied
+     */
+    @Override
+    protected boolean copyInternal(File source, File destination) {
+        boolean success = true;
+        Reader reader = null;
+        Writer writer = null;
+        FileOutputStream fout = null;
+
+        try {
+            reader = openReader(source);
+            fout = FS.newOutputStream(destination, atomicWrite);
+            writer = new BufferedWriter(new OutputStreamWriter(fout, encoding));
+            automaton.substitute(reader, writer);
+            writer.flush();
+            AtomicFileOutputStream.commit(fout);
+        } catch (IOException e) {
+            if (FS.enableLogging) {
+                FileSyncPlugin.log("Could not copy file '" + source + "' to '"
+                        + destination + "'", e, IStatus.WARNING);
+            }
+            success = false;
+        } finally {
+            // Always close input and output streams.
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    if (FS.enableLogging) {
+                        FileSyncPlugin.log("Could not close file stream for file '"
+                                + source + "'", e, IStatus.WARNING);
+                    }
+                    success = false;
+                }
+            }
+            if (writer != null) {
+                try {
+                    writer.close();
+                    if (!useCurrentDateForDestinationFiles && success) {
+                        boolean modified = destination.setLastModified(source.lastModified());
+                        if(!modified && FS.enableLogging){
+                            FileSyncPlugin.log("Could not update last modified stamp for file '"
+                                    + destination + "'", null, IStatus.WARNING);
+                        }
+                    } else {
+                        // should be updated by system I/O
+                    }
+                } catch (IOException e) {
+                    if (FS.enableLogging) {
+                        FileSyncPlugin.log("Could not close file stream for file '"
+                                + destination + "'", e, IStatus.WARNING);
+                    }
+                    success = false;
+                }
+            } else if (fout != null) {
+                // writer couldn't be created: discard the output
+                try {
+                    fout.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return success;
+    }
+}
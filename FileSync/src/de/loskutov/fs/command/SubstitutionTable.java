@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Variables used for substitution together with their compiled forms (regular
+ * expressions for {@link CopyDelegate1}, automaton for {@link StreamingCopyDelegate}),
+ * which are created on first use only.
+ * <p>
+ * Tables loaded from the variables files are cached by the content hash of the
+ * files: as long as the files are not changed, all mappings, projects and builds
+ * share the same table and nothing is compiled again. The table is immutable and
+ * can be shared between threads.
+ * @author Andrey
+ */
+public final class SubstitutionTable {
+
+    /** max. number of cached tables */
+    private static final int CACHE_SIZE = 32;
+
+    /** key is the content hash of defaults and variables files, LRU order */
+    private static final Map<String, SubstitutionTable> CACHE = new LinkedHashMap<String, SubstitutionTable>(
+            CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SubstitutionTable> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Properties variables;
+
+    /** variables keys, in the same order as patterns and values */
+    private String[] keys;
+
+    private Pattern[] patterns;
+
+    /** replacement strings, in the same order as patterns */
+    private String[] values;
+
+    private VariablesAutomaton automaton;
+
+    /**
+     * @param variables variables to substitute, should not be modified after the
+     * table is created
+     */
+    public SubstitutionTable(Properties variables) {
+        this.variables = variables;
+    }
+
+    /**
+     * @param defaults file with default variables, may be null
+     * @param variablesFile file with variables overriding the defaults
+     * @return the cached table, if both files are not changed since the table was
+     * loaded, or a new one
+     * @throws IOException if one of the files could not be read
+     */
+    public static SubstitutionTable getInstance(File defaults, File variablesFile)
+            throws IOException {
+        byte[] defaultBytes = defaults == null ? null : Files.readAllBytes(defaults
+                .toPath());
+        byte[] variablesBytes = Files.readAllBytes(variablesFile.toPath());
+        String key = (defaultBytes == null ? "-" : Long.toHexString(ContentHash
+                .hash(defaultBytes)))
+                + "/" + Long.toHexString(ContentHash.hash(variablesBytes));
+        synchronized (CACHE) {
+            SubstitutionTable table = CACHE.get(key);
+            if (table != null) {
+                return table;
+            }
+        }
+        Properties props = new Properties();
+        if (defaultBytes != null) {
+            props.load(new ByteArrayInputStream(defaultBytes));
+        }
+        props.load(new ByteArrayInputStream(variablesBytes));
+        SubstitutionTable table = new SubstitutionTable(props);
+        synchronized (CACHE) {
+            SubstitutionTable cached = CACHE.get(key);
+            if (cached != null) {
+                // loaded concurrently
+                return cached;
+            }
+            CACHE.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Forgets all cached tables
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * @return the variables, should not be modified
+     */
+    public Properties getVariables() {
+        return variables;
+    }
+
+    /**
+     * @return variable names, in the same order as {@link #getPatterns()}
+     */
+    synchronized String[] getKeys() {
+        compilePatterns();
+        return keys;
+    }
+
+    /**
+     * @return one "${key}" pattern for each variable
+     */
+    synchronized Pattern[] getPatterns() {
+        compilePatterns();
+        return patterns;
+    }
+
+    /**
+     * @return the replacement for each pattern
+     */
+    synchronized String[] getValues() {
+        compilePatterns();
+        return values;
+    }
+
+    synchronized VariablesAutomaton getAutomaton() {
+        if (automaton == null) {
+            automaton = new VariablesAutomaton(variables);
+        }
+        return automaton;
+    }
+
+    private void compilePatterns() {
+        if (patterns != null) {
+            return;
+        }
+        Set<String> keySet = variables.stringPropertyNames();
+        String[] newKeys = new String[keySet.size()];
+        Pattern[] newPatterns = new Pattern[newKeys.length];
+        String[] newValues = new String[newKeys.length];
+        int i = 0;
+        for (Iterator<String> iter = keySet.iterator(); iter.hasNext(); i++) {
+            String key = iter.next();
+            newKeys[i] = key;
+            newPatterns[i] = Pattern.compile("\\$\\{" + key + "\\}");
+            newValues[i] = variables.getProperty(key);
+        }
+        keys = newKeys;
+        values = newValues;
+        patterns = newPatterns;
+    }
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recursive delete of directory trees. Sub directories and large groups of files are
+ * deleted in parallel by a shared fork/join pool, each directory is removed bottom-up,
+ * after all its children are deleted.
+ * <p>
+ * A failure does not stop the delete: all other files are still deleted, and only
+ * the directories containing not deleted files are left. Symbolic links are deleted,
+ * but never followed.
+ * @author Andrey
+ */
+public final class TreeDeleter {
+
+    /**
+     * System property to set the number of delete threads. Values less then 2 disable
+     * parallel delete. Default is the number of available processors.
+     */
+    public static final String KEY_DELETE_THREADS = "fs.deletethreads";
+
+    /** max. number of files deleted by one task */
+    private static final int BATCH_SIZE = 64;
+
+    /** max. number of failed files remembered in the result */
+    private static final int MAX_FAILED = 100;
+
+    private static ForkJoinPool pool;
+
+    /**
+     * Outcome of one recursive delete, may be updated concurrently by the delete
+     * threads
+     */
+    public static final class Result {
+
+        private final File root;
+
+        private final AtomicInteger deleted;
+
+        private final AtomicInteger failedCount;
+
+        private final List<File> failed;
+
+        Result(File root) {
+            this.root = root;
+            deleted = new AtomicInteger();
+            failedCount = new AtomicInteger();
+            failed = Collections.synchronizedList(new ArrayList<File>());
+        }
+
+        public File getRoot() {
+            return root;
+        }
+
+        /**
+         * @return true if the whole tree was deleted or was not existing
+         */
+        public boolean isOk() {
+            return failedCount.get() == 0;
+        }
+
+        /**
+         * @return number of deleted files and directories
+         */
+        public int getDeletedCount() {
+            return deleted.get();
+        }
+
+        /**
+         * @return number of files and directories which could not be deleted or
+         * listed. Parents of not deleted files are not counted.
+         */
+        public int getFailedCount() {
+            return failedCount.get();
+        }
+
+        /**
+         * @return files and directories which could not be deleted or listed, at most
+         * first 100 of them
+         */
+        public List<File> getFailed() {
+            synchronized (failed) {
+                return new ArrayList<File>(failed);
+            }
+        }
+
+        void deleted() {
+            deleted.incrementAndGet();
+        }
+
+        void failed(File file) {
+            if (failedCount.incrementAndGet() <= MAX_FAILED) {
+                failed.add(file);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Deleted ").append(getDeletedCount()).append(" files or folders in '")
+            .append(root).append('\'');
+            int count = getFailedCount();
+            if (count > 0) {
+                sb.append(", failed to delete ").append(count).append(", e.g. ");
+                List<File> list = getFailed();
+                for (int i = 0; i < list.size() && i < 3; i++) {
+                    if (i > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append('\'').append(list.get(i)).append('\'');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Deletes the files of one directory, without sub directories
+     */
+    private static final class FilesTask extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+
+        private final transient Result result;
+
+        FilesTask(List<File> files, Result result) {
+            this.files = files;
+            this.result = result;
+        }
+
+        @Override
+        protected Boolean compute() {
+            return Boolean.valueOf(deleteFiles(files, result));
+        }
+    }
+
+    /**
+     * Deletes one directory with all children
+     */
+    private static final class DirectoryTask extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+
+        private final transient Result result;
+
+        private final boolean parallel;
+
+        DirectoryTask(File dir, Result result, boolean parallel) {
+            this.dir = dir;
+            this.result = result;
+            this.parallel = parallel;
+        }
+
+        @Override
+        protected Boolean compute() {
+            return Boolean.valueOf(deleteTree());
+        }
+
+        boolean deleteTree() {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                if (!exists(dir)) {
+                    // deleted concurrently
+                    return true;
+                }
+                result.failed(dir);
+                return false;
+            }
+            List<DirectoryTask> dirs = new ArrayList<DirectoryTask>();
+            List<File> files = new ArrayList<File>();
+            for (int i = 0; i < children.length; i++) {
+                if (isDirectory(children[i])) {
+                    dirs.add(new DirectoryTask(children[i], result, parallel));
+                } else {
+                    files.add(children[i]);
+                }
+            }
+            boolean ok = true;
+            if (!parallel) {
+                for (int i = 0; i < dirs.size(); i++) {
+                    ok &= dirs.get(i).deleteTree();
+                }
+                ok &= deleteFiles(files, result);
+            } else {
+                List<ForkJoinTask<Boolean>> tasks = new ArrayList<ForkJoinTask<Boolean>>(dirs);
+                for (int i = BATCH_SIZE; i < files.size(); i += BATCH_SIZE) {
+                    int end = Math.min(i + BATCH_SIZE, files.size());
+                    tasks.add(new FilesTask(files.subList(i, end), result));
+                }
+                for (int i = 0; i < tasks.size(); i++) {
+                    tasks.get(i).fork();
+                }
+                ok &= deleteFiles(files.subList(0, Math.min(BATCH_SIZE, files.size())),
+                        result);
+                for (int i = tasks.size() - 1; i >= 0; i--) {
+                    ok &= tasks.get(i).join().booleanValue();
+                }
+            }
+            if (!ok) {
+                // directory can't be empty, the cause is already reported
+                return false;
+            }
+            return deleteFile(dir, result);
+        }
+    }
+
+    private TreeDeleter() {
+        // don't instantiate me
+    }
+
+    /**
+     * Deletes given file or directory with all children
+     * @param root file or directory to delete, may not exist
+     * @return the delete result, never null
+     */
+    public static Result delete(File root) {
+        Result result = new Result(root);
+        if (!exists(root)) {
+            return result;
+        }
+        if (!isDirectory(root)) {
+            deleteFile(root, result);
+            return result;
+        }
+        ForkJoinPool forkJoinPool = getPool();
+        if (forkJoinPool == null) {
+            new DirectoryTask(root, result, false).deleteTree();
+        } else {
+            forkJoinPool.invoke(new DirectoryTask(root, result, true));
+        }
+        return result;
+    }
+
+    /**
+     * @return shared pool, or null if parallel delete is disabled
+     */
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int defaultCount = Runtime.getRuntime().availableProcessors();
+            int threads = Integer.getInteger(KEY_DELETE_THREADS, defaultCount).intValue();
+            if (threads < 2) {
+                return null;
+            }
+            // idle worker threads are stopped by the pool itself
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    static boolean deleteFiles(List<File> files, Result result) {
+        boolean ok = true;
+        for (int i = 0; i < files.size(); i++) {
+            ok &= deleteFile(files.get(i), result);
+        }
+        return ok;
+    }
+
+    static boolean deleteFile(File file, Result result) {
+        if (file.delete()) {
+            result.deleted();
+            return true;
+        }
+        if (!exists(file)) {
+            // deleted concurrently
+            return true;
+        }
+        result.failed(file);
+        return false;
+    }
+
+    static boolean isDirectory(File file) {
+        return Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    static boolean exists(File file) {
+        return Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS);
+    }
+}
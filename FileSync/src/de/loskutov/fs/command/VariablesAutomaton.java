@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2009 Andrey Loskutov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * Contributor:  Andrey Loskutov - initial API and implementation
+ *******************************************************************************/
+package de.loskutov.fs.command;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Aho-Corasick automaton, which matches all "${key}" tokens for the given variables
+ * at once, so that the text has to be scanned only one time, independently from the
+ * number of variables.
+ * <p>
+ * The automaton is immutable after creation and can be shared between threads.
+ * Replacement is done in one pass: values inserted into the text are not scanned
+ * again for other variables.
+ * @author Andrey
+ */
+public final class VariablesAutomaton {
+
+    private static final int ROOT = 0;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** sorted transition characters, per state */
+    private final char[][] labels;
+
+    /** transition targets, per state, in the same order as labels */
+    private final int[][] targets;
+
+    /** failure links, per state */
+    private final int[] fail;
+
+    /** length of the path from root, per state */
+    private final int[] depth;
+
+    /** replacement value, if the state (or one of its failure states) ends a token */
+    private final String[] values;
+
+    /** length of the token matched in the state, valid only if value is not null */
+    private final int[] matchLength;
+
+    private final int maxDepth;
+
+    /** the only character which can start a token, or -1 if there are more */
+    private final int startChar;
+
+    /**
+     * @param variables key is variable name, value is the value to replace "${key}" with
+     */
+    public VariablesAutomaton(Properties variables) {
+        List<Map<Character, Integer>> goTo = new ArrayList<Map<Character, Integer>>();
+        List<String> outputs = new ArrayList<String>();
+        List<Integer> depths = new ArrayList<Integer>();
+        goTo.add(new HashMap<Character, Integer>());
+        outputs.add(null);
+        depths.add(Integer.valueOf(0));
+
+        Set<String> keys = variables.stringPropertyNames();
+        for (String key : keys) {
+            String token = "${" + key + "}";
+            int state = ROOT;
+            for (int i = 0; i < token.length(); i++) {
+                Character c = Character.valueOf(token.charAt(i));
+                Integer next = goTo.get(state).get(c);
+                if (next == null) {
+                    next = Integer.valueOf(goTo.size());
+                    goTo.add(new HashMap<Character, Integer>());
+                    outputs.add(null);
+                    depths.add(Integer.valueOf(i + 1));
+                    goTo.get(state).put(c, next);
+                }
+                state = next.intValue();
+            }
+            outputs.set(state, variables.getProperty(key));
+        }
+
+        int size = goTo.size();
+        labels = new char[size][];
+        targets = new int[size][];
+        fail = new int[size];
+        depth = new int[size];
+        values = new String[size];
+        matchLength = new int[size];
+        int max = 0;
+        for (int state = 0; state < size; state++) {
+            Map<Character, Integer> map = goTo.get(state);
+            char[] chars = new char[map.size()];
+            int idx = 0;
+            for (Character c : map.keySet()) {
+                chars[idx++] = c.charValue();
+            }
+            Arrays.sort(chars);
+            int[] next = new int[chars.length];
+            for (int i = 0; i < chars.length; i++) {
+                next[i] = map.get(Character.valueOf(chars[i])).intValue();
+            }
+            labels[state] = chars;
+            targets[state] = next;
+            depth[state] = depths.get(state).intValue();
+            values[state] = outputs.get(state);
+            if (values[state] != null) {
+                matchLength[state] = depth[state];
+            }
+            max = Math.max(max, depth[state]);
+        }
+        maxDepth = max;
+        startChar = labels[ROOT].length == 1 ? labels[ROOT][0] : -1;
+
+        // breadth first computation of failure links
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < targets[ROOT].length; i++) {
+            int child = targets[ROOT][i];
+            fail[child] = ROOT;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int i = 0; i < labels[state].length; i++) {
+                char c = labels[state][i];
+                int child = targets[state][i];
+                int f = fail[state];
+                int t;
+                while ((t = goTo(f, c)) < 0 && f != ROOT) {
+                    f = fail[f];
+                }
+                fail[child] = t < 0 || t == child ? ROOT : t;
+                if (values[child] == null && values[fail[child]] != null) {
+                    // shorter token ends here too
+                    values[child] = values[fail[child]];
+                    matchLength[child] = matchLength[fail[child]];
+                }
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * @return true if there is nothing to substitute
+     */
+    public boolean isEmpty() {
+        return labels[ROOT].length == 0;
+    }
+
+    private int goTo(int state, char c) {
+        char[] chars = labels[state];
+        if (chars.length == 1) {
+            return chars[0] == c ? targets[state][0] : -1;
+        }
+        int idx = Arrays.binarySearch(chars, c);
+        return idx < 0 ? -1 : targets[state][idx];
+    }
+
+    private int next(int state, char c) {
+        while (true) {
+            int t = goTo(state, c);
+            if (t >= 0) {
+                return t;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = fail[state];
+        }
+    }
+
+    private boolean isStartChar(char c) {
+        if (startChar >= 0) {
+            return c == startChar;
+        }
+        return goTo(ROOT, c) >= 0;
+    }
+
+    /**
+     * Copies all characters from given reader to given writer, replacing all known
+     * "${key}" tokens with their values. Neither reader nor writer are closed.
+     */
+    public void substitute(Reader in, Writer out) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        // characters of the current (partial) token, length is always depth[state]
+        char[] pending = new char[maxDepth + 1];
+        int state = ROOT;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            int i = 0;
+            while (i < read) {
+                if (state == ROOT) {
+                    // fast path: skip everything what can't start a token
+                    int start = i;
+                    while (i < read && !isStartChar(buffer[i])) {
+                        i++;
+                    }
+                    if (i > start) {
+                        out.write(buffer, start, i - start);
+                    }
+                    if (i == read) {
+                        break;
+                    }
+                }
+                char c = buffer[i++];
+                int pendingLength = depth[state];
+                pending[pendingLength++] = c;
+                state = next(state, c);
+                int keep = depth[state];
+                int drop = pendingLength - keep;
+                if (drop > 0) {
+                    // this characters can't be a part of any token anymore
+                    out.write(pending, 0, drop);
+                    System.arraycopy(pending, drop, pending, 0, keep);
+                }
+                String value = values[state];
+                if (value != null) {
+                    int before = keep - matchLength[state];
+                    if (before > 0) {
+                        out.write(pending, 0, before);
+                    }
+                    out.write(value);
+                    state = ROOT;
+                }
+            }
+        }
+        if (depth[state] > 0) {
+            out.write(pending, 0, depth[state]);
+        }
+    }
+}
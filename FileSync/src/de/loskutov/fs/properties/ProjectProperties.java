@@ -9,13 +9,11 @@
 package de.loskutov.fs.properties;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 
 import org.eclipse.core.resources.IPathVariableManager;
 import org.eclipse.core.resources.IProject;
@@ -42,8 +40,11 @@ import org.eclipse.core.variables.VariablesPlugin;
 import org.osgi.service.prefs.BackingStoreException;
 
 import de.loskutov.fs.FileSyncPlugin;
+import de.loskutov.fs.builder.DestinationIndex;
 import de.loskutov.fs.builder.FileSyncBuilder;
 import de.loskutov.fs.command.FileMapping;
+import de.loskutov.fs.command.MappingTrie;
+import de.loskutov.fs.command.SubstitutionTable;
 
 /**
  * One mapping property should be like:
@@ -110,6 +111,36 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
     /** synchronize team private data too (like .svn shit) */
     public static final String KEY_INCLUDE_TEAM_PRIVATE = "includeTeamPrivateFiles";
 
+    /**
+     * Default should be false - even if property not set.
+     * If true, files are compared by content hash and not by modification time and size.
+     * Required if destination is on a different file system (like SMB shares or FAT).
+     */
+    public static final String KEY_COMPARE_CONTENT = "compareContentHash";
+
+    /**
+     * Default should be false - even if property not set.
+     * If true, destination files are written to a temporary file first, which replaces
+     * the destination file after the copy is complete. Permissions of the replaced
+     * file are kept. Destinations which are symbolic links are written directly
+     * (not atomic), so that the link is kept and its target is updated.
+     */
+    public static final String KEY_ATOMIC_WRITE = "atomicWrite";
+
+    /**
+     * Default should be false - even if property not set.
+     * If true, changes reported by automatic builds are collected and synchronized
+     * together after a quiet period ("fs.debounce" system property, milliseconds).
+     */
+    public static final String KEY_DEBOUNCE_AUTO_BUILD = "debounceAutoBuild";
+
+    /**
+     * Default should be false - even if property not set.
+     * If true, changes reported by automatic and incremental builds are written to
+     * the destinations in background, without blocking the workspace.
+     */
+    public static final String KEY_WRITE_BEHIND = "writeBehind";
+
     /**
      * not for mappings props but only for even notifications use
      */
@@ -132,6 +163,11 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
      */
     private FileMapping[] mappings;
 
+    /**
+     * Lookup structure for the current mappings, always replaced together with them
+     */
+    private MappingTrie mappingTrie;
+
     /**
      * key is IProject, value is corresponding ProjectProperties
      */
@@ -250,6 +286,7 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
         ResourcesPlugin.getWorkspace().removeResourceChangeListener(this);
         prefListeners.clear();
         projectsToProps.remove(project);
+        DestinationIndex.removeInstance(project);
     }
 
     /**
@@ -319,15 +356,15 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
                  */
                 IPath varPath = fm1.getFullVariablesPath();
                 if (varPath != null) {
-                    Properties props = new Properties();
                     String defPath = prefs.get(KEY_DEFAULT_VARIABLES, null);
                     File varFile = varPath.toFile();
+                    File defaults = null;
                     if (defPath != null) {
                         File defFile = new File(fm1.getProjectPath().append(defPath)
                                 .toOSString());
                         if (!varFile.equals(defFile)) {
                             if (defFile.exists()) {
-                                loadProps(defFile, props);
+                                defaults = defFile;
                             } else {
                                 fm1.setVariables(null);
                                 FileSyncPlugin.log("Default variables substitution file "
@@ -339,8 +376,7 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
                     }
 
                     if (varFile.exists()) {
-                        loadProps(varFile, props);
-                        fm1.setVariables(props);
+                        fm1.setSubstitutionTable(loadVariables(defaults, varFile));
                     } else {
                         fm1.setVariables(null);
                         FileSyncPlugin.log("Variables substitution file not found: "
@@ -356,27 +392,25 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
 
         mappings = (FileMapping[]) mappingList1.toArray(new FileMapping[mappingList1
                                                                         .size()]);
+        mappingTrie = new MappingTrie(mappings);
 
         this.ignorePreferenceListeners = false;
         this.rebuildPathMap = false;
     }
 
-    private void loadProps(File file, Properties props) {
-        FileInputStream fis = null;
+    /**
+     * @param defaults default variables file, may be null
+     * @param file variables file
+     * @return variables table, shared with all other mappings and projects using the
+     * same files, as long as the files are not changed. Null if files can't be read.
+     */
+    private SubstitutionTable loadVariables(File defaults, File file) {
         try {
-            fis = new FileInputStream(file);
-            props.load(fis);
+            return SubstitutionTable.getInstance(defaults, file);
         } catch (IOException e) {
             FileSyncPlugin.log("Error during reading of properties file: '" + file
-                    + "' for project '" + project.getName() + "'", null, IStatus.WARNING);
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
+                    + "' for project '" + project.getName() + "'", e, IStatus.WARNING);
+            return null;
         }
     }
 
@@ -464,6 +498,17 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
      */
     public void setMappings(FileMapping[] mappings) {
         this.mappings = mappings;
+        mappingTrie = new MappingTrie(mappings);
+    }
+
+    /**
+     * @return lookup structure for the current mappings, never null
+     */
+    public MappingTrie getMappingTrie() {
+        if (mappingTrie == null) {
+            mappingTrie = new MappingTrie(mappings);
+        }
+        return mappingTrie;
     }
 
     @Override
@@ -536,6 +581,10 @@ public class ProjectProperties implements IPreferenceChangeListener, INodeChange
         code += preferences.get(KEY_DEFAULT_VARIABLES, "").hashCode();
         code += preferences.get(KEY_USE_CURRENT_DATE, "").hashCode();
         code += preferences.get(KEY_INCLUDE_TEAM_PRIVATE, "").hashCode();
+        code += preferences.get(KEY_COMPARE_CONTENT, "").hashCode();
+        code += preferences.get(KEY_ATOMIC_WRITE, "").hashCode();
+        code += preferences.get(KEY_DEBOUNCE_AUTO_BUILD, "").hashCode();
+        code += preferences.get(KEY_WRITE_BEHIND, "").hashCode();
         if(mappings != null){
             for (int i = 0; i < mappings.length; i++) {
                 code += mappings[i].hashCode();
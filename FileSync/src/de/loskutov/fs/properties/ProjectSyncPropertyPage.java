@@ -124,6 +124,10 @@ IStatusChangeListener {
 
     protected SelectionButtonDialogField useCurrentDateField;
     protected SelectionButtonDialogField includeTeamFilesField;
+    protected SelectionButtonDialogField compareContentField;
+    protected SelectionButtonDialogField atomicWriteField;
+    protected SelectionButtonDialogField debounceField;
+    protected SelectionButtonDialogField writeBehindField;
 
     private SelectionButtonDialogField enableFileSyncField;
 
@@ -356,6 +360,31 @@ IStatusChangeListener {
         includeTeamFilesField.setLabelText("Sync team private files (like .svn)");
         includeTeamFilesField.setDialogFieldListener(adapter);
 
+        compareContentField = new SelectionButtonDialogField(SWT.CHECK);
+        compareContentField.setSelection(false);
+        compareContentField
+        .setLabelText("Compare file content (for targets on different file systems)");
+        compareContentField.setDialogFieldListener(adapter);
+
+        atomicWriteField = new SelectionButtonDialogField(SWT.CHECK);
+        atomicWriteField.setSelection(false);
+        atomicWriteField
+        .setLabelText("Replace target files only after they are completely written "
+                + "(keeps permissions, symbolic links are written directly)");
+        atomicWriteField.setDialogFieldListener(adapter);
+
+        debounceField = new SelectionButtonDialogField(SWT.CHECK);
+        debounceField.setSelection(false);
+        debounceField
+        .setLabelText("Collect changes from automatic builds and sync them together");
+        debounceField.setDialogFieldListener(adapter);
+
+        writeBehindField = new SelectionButtonDialogField(SWT.CHECK);
+        writeBehindField.setSelection(false);
+        writeBehindField
+        .setLabelText("Write changes to targets in background (don't block the workspace)");
+        writeBehindField.setDialogFieldListener(adapter);
+
         enableInputControls(!disabled);
     }
 
@@ -390,6 +419,22 @@ IStatusChangeListener {
                 ProjectProperties.KEY_INCLUDE_TEAM_PRIVATE, false);
 
         includeTeamFilesField.setSelection(includeTeamFiles);
+        boolean compareContent = preferences.getBoolean(
+                ProjectProperties.KEY_COMPARE_CONTENT, false);
+
+        compareContentField.setSelection(compareContent);
+        boolean atomicWrite = preferences.getBoolean(
+                ProjectProperties.KEY_ATOMIC_WRITE, false);
+
+        atomicWriteField.setSelection(atomicWrite);
+        boolean debounce = preferences.getBoolean(
+                ProjectProperties.KEY_DEBOUNCE_AUTO_BUILD, false);
+
+        debounceField.setSelection(debounce);
+        boolean writeBehind = preferences.getBoolean(
+                ProjectProperties.KEY_WRITE_BEHIND, false);
+
+        writeBehindField.setSelection(writeBehind);
     }
 
     private IPath readVariablesPath(IEclipsePreferences preferences) {
@@ -452,7 +497,9 @@ IStatusChangeListener {
         LayoutUtil.doDefaultLayout(composite, new DialogField[] { enableFileSyncField,
                 foldersList, useFolderOutputsField, /*useVariablesField,*/
                 includeTeamFilesField,
-                useCurrentDateField }, true, SWT.DEFAULT, SWT.DEFAULT);
+                useCurrentDateField, compareContentField, atomicWriteField,
+                debounceField, writeBehindField }, true,
+                SWT.DEFAULT, SWT.DEFAULT);
 
         LayoutUtil.setHorizontalGrabbing(foldersList.getTreeControl(null));
 
@@ -781,6 +828,10 @@ IStatusChangeListener {
         //        useVariablesField.setEnabled(selected);
         useCurrentDateField.setEnabled(selected);
         includeTeamFilesField.setEnabled(selected);
+        compareContentField.setEnabled(selected);
+        atomicWriteField.setEnabled(selected);
+        debounceField.setEnabled(selected);
+        writeBehindField.setEnabled(selected);
         destPathDialogField.setEnabled(selected);
         variablesDialogField.setEnabled(selected);
         foldersList.setEnabled(selected);
@@ -1147,6 +1198,14 @@ IStatusChangeListener {
                 + useCurrentDateField.isSelected());
         preferences.put(ProjectProperties.KEY_INCLUDE_TEAM_PRIVATE, ""
                 + includeTeamFilesField.isSelected());
+        preferences.put(ProjectProperties.KEY_COMPARE_CONTENT, ""
+                + compareContentField.isSelected());
+        preferences.put(ProjectProperties.KEY_ATOMIC_WRITE, ""
+                + atomicWriteField.isSelected());
+        preferences.put(ProjectProperties.KEY_DEBOUNCE_AUTO_BUILD, ""
+                + debounceField.isSelected());
+        preferences.put(ProjectProperties.KEY_WRITE_BEHIND, ""
+                + writeBehindField.isSelected());
         if (preferences.get("WARNING", null) == null) {
             preferences.put("WARNING", "DO NOT MODIFY THIS FILE IF YOU DON'T UNDERSTAND");
         }
@@ -1272,6 +1331,34 @@ IStatusChangeListener {
         if (includeTeamFiles != includeTeamFilesNew){
             return true;
         }
+
+        boolean compareContent = preferences.getBoolean(
+                ProjectProperties.KEY_COMPARE_CONTENT, false);
+        boolean compareContentNew = compareContentField.isSelected();
+        if (compareContent != compareContentNew){
+            return true;
+        }
+
+        boolean atomicWrite = preferences.getBoolean(
+                ProjectProperties.KEY_ATOMIC_WRITE, false);
+        boolean atomicWriteNew = atomicWriteField.isSelected();
+        if (atomicWrite != atomicWriteNew){
+            return true;
+        }
+
+        boolean debounce = preferences.getBoolean(
+                ProjectProperties.KEY_DEBOUNCE_AUTO_BUILD, false);
+        boolean debounceNew = debounceField.isSelected();
+        if (debounce != debounceNew){
+            return true;
+        }
+
+        boolean writeBehind = preferences.getBoolean(
+                ProjectProperties.KEY_WRITE_BEHIND, false);
+        boolean writeBehindNew = writeBehindField.isSelected();
+        if (writeBehind != writeBehindNew){
+            return true;
+        }
         return false;
     }
 